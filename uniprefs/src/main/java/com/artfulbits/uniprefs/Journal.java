@@ -0,0 +1,380 @@
+package com.artfulbits.uniprefs;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.artfulbits.uniprefs.storages.TypedStorage;
+import com.artfulbits.uniprefs.toolbox.CleanupUtils;
+import com.artfulbits.uniprefs.toolbox.SaveBuffers;
+import com.artfulbits.uniprefs.toolbox.Types;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the preferences changes. Log is stored near the preferences file and contains changes done after
+ * the last full save of the file. Full save of the file (compaction) drops the log.
+ * <p/>
+ * Format: header {magic, version, length and CRC32 of the base file} and the sequence of batches {payload length,
+ * CRC32 of payload, payload}. Payload is a sequence of records: REMOVE {key} or PUT {key, type, value}. Header
+ * binds the log to the exact content of the base file, so log left after interrupted compaction is never replayed on
+ * top of the newer file. Torn batch at the end of the log (process killed during append) is ignored. Batch is applied
+ * only after all its records are decoded, batch that is not decoded stops the replay like a checksum mismatch.
+ */
+/* package */ final class Journal {
+  /* [ CONSTANTS ] ================================================================================================ */
+
+  /** Extension of the log file. */
+  public static final String EXTENSION = ".log";
+  /** Log file should not be bigger than base file multiplied by ratio, otherwise compaction is needed. */
+  public static final int COMPACTION_RATIO = 1;
+  /** Minimal log size that requires compaction. */
+  public static final int COMPACTION_MIN_SIZE = 32 * 1024;
+
+  /** Magic number of the log file. */
+  private static final int MAGIC = 0x554e494c;
+  /** Version of the log format. */
+  private static final int VERSION = 1;
+  /** Record: remove value. */
+  private static final byte REMOVE = 2;
+  /** Record: put value. */
+  private static final byte PUT = 3;
+  /** Decoded value of the remove record. */
+  private static final Object REMOVED = new Object();
+  /** Buffer size for file reading. */
+  private static final int BUFFER_SIZE = 32 * 1024;
+  /** Expected size of the appended batch. */
+  private static final int BATCH_SIZE = 4 * 1024;
+  /** Size of the log header: magic, version, length and checksum of the base file. */
+  private static final int LOG_HEADER_SIZE = 4 + 4 + 8 + 8;
+  /** Size of the batch header: payload length and its checksum. */
+  private static final int BATCH_HEADER_SIZE = 4 + 8;
+
+  /** Hidden constructor. */
+  private Journal() {
+    throw new AssertionError();
+  }
+
+  /* [ STATIC METHODS ] =========================================================================================== */
+
+  /**
+   * Get log file of the preferences file.
+   *
+   * @param file preferences file.
+   * @return log file.
+   */
+  @NonNull
+  public static File of(@NonNull final File file) {
+    return new File(file.getPath() + EXTENSION);
+  }
+
+  /**
+   * Is log too big and full save of the preferences is required.
+   *
+   * @param log log file.
+   * @param base preferences file.
+   * @return true - compaction needed, otherwise false.
+   */
+  public static boolean isCompactionNeeded(@NonNull final File log, @NonNull final File base) {
+    final long length = log.length();
+
+    return length > COMPACTION_MIN_SIZE && length > base.length() * COMPACTION_RATIO;
+  }
+
+  /**
+   * Append changes to the log.
+   *
+   * @param log log file.
+   * @param base preferences file, log is bound to its content.
+   * @param batch changes to append.
+   * @param sync true - force appended data to the disk.
+   * @return true - changes appended, false - changes cannot be logged (unsupported data types) and full save is needed.
+   * @throws IOException on write errors.
+   */
+  public static boolean append(@NonNull final File log, @NonNull final File base, @NonNull final Storage.Batch batch,
+                               final boolean sync) throws IOException {
+    final boolean created = !log.exists() || 0 == log.length();
+    final long length = created ? 0 : log.length();
+
+    // batch is assembled in reusable buffer of the save thread and written by one call
+    final SaveBuffers.Output out = SaveBuffers.current().output(BATCH_SIZE);
+
+    try {
+      final DataOutputStream dos = new DataOutputStream(out);
+
+      if (created) {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(base.exists() ? base.length() : -1);
+        dos.writeLong(checksum(base));
+      }
+
+      // length and CRC32 of the payload are patched after encoding
+      final int header = out.size();
+      dos.writeInt(0);
+      dos.writeLong(0);
+
+      if (!encode(batch, dos)) {
+        return false;
+      }
+
+      dos.flush();
+
+      final int end = out.size();
+      final int payload = end - header - 12;
+      final long crc = out.checksum(header + 12, payload);
+
+      out.seek(header);
+      dos.writeInt(payload);
+      dos.writeLong(crc);
+      dos.flush();
+      out.seek(end);
+
+      final FileOutputStream fos = new FileOutputStream(log, !created);
+
+      try {
+        out.writeTo(fos);
+
+        if (sync) {
+          fos.getFD().sync();
+        }
+      } catch (@NonNull final IOException ex) {
+        // drop torn batch, otherwise all next batches will be unreachable on replay
+        fos.getChannel().truncate(length);
+        throw ex;
+      } finally {
+        fos.close();
+      }
+    } finally {
+      out.close();
+    }
+
+    return true;
+  }
+
+  /**
+   * Apply changes from the log to the storage.
+   *
+   * @param log log file.
+   * @param base preferences file, log should be bound to its content.
+   * @param storage modifiable storage to update.
+   * @return true - log replayed, otherwise false (no log or log does not belong to the base file).
+   */
+  public static boolean replay(@NonNull final File log, @NonNull final File base, @NonNull final TypedStorage storage) {
+    if (!log.exists()) {
+      return false;
+    }
+
+    DataInputStream dis = null;
+
+    try {
+      dis = new DataInputStream(new BufferedInputStream(new FileInputStream(log), BUFFER_SIZE));
+
+      if (MAGIC != dis.readInt() || VERSION != dis.readInt()) {
+        return false;
+      }
+
+      // log left after interrupted compaction, all its changes are in base file already
+      if (dis.readLong() != (base.exists() ? base.length() : -1) || dis.readLong() != checksum(base)) {
+        return false;
+      }
+
+      final CRC32 crc = new CRC32();
+      final List<String> keys = new ArrayList<>();
+      final List<Object> values = new ArrayList<>();
+      long remaining = log.length() - LOG_HEADER_SIZE;
+
+      while (true) {
+        final byte[] payload;
+        final long expected;
+
+        try {
+          final int length = dis.readInt();
+          expected = dis.readLong();
+          remaining -= BATCH_HEADER_SIZE;
+
+          // corrupted or torn length of the batch, as a checksum mismatch stops the replay
+          if (length < 0 || length > remaining) {
+            break;
+          }
+
+          remaining -= length;
+          payload = new byte[length];
+          dis.readFully(payload);
+        } catch (@NonNull final EOFException ignored) {
+          // end of the log or torn last batch
+          break;
+        }
+
+        crc.reset();
+        crc.update(payload);
+
+        if (crc.getValue() != expected) {
+          break;
+        }
+
+        // batch is applied as a whole, half decoded batch never reaches the storage
+        try {
+          decode(payload, keys, values);
+        } catch (@NonNull final Exception ex) {
+          Log.e(PreferencesUnified.LOG_TAG, Log.getStackTraceString(ex));
+          break;
+        }
+
+        apply(keys, values, storage);
+      }
+
+      return true;
+    } catch (@NonNull final Throwable ignored) {
+      Log.e(PreferencesUnified.LOG_TAG, Log.getStackTraceString(ignored));
+    } finally {
+      CleanupUtils.destroy(dis);
+    }
+
+    return false;
+  }
+
+  /**
+   * Delete the log file.
+   *
+   * @param log log file.
+   * @return true - log does not exist anymore, otherwise false.
+   */
+  public static boolean delete(@NonNull final File log) {
+    return !log.exists() || log.delete();
+  }
+
+  /**
+   * Calculate checksum of the file content.
+   *
+   * @param file file to check.
+   * @return CRC32 of the file, 0 if file does not exist.
+   * @throws IOException on read errors.
+   */
+  public static long checksum(@NonNull final File file) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    final CRC32 crc = new CRC32();
+    final byte[] buffer = SaveBuffers.current().stream();
+    final InputStream is = new FileInputStream(file);
+
+    try {
+      for (int read; (read = is.read(buffer)) >= 0; ) {
+        crc.update(buffer, 0, read);
+      }
+    } finally {
+      CleanupUtils.destroy(is);
+    }
+
+    return crc.getValue();
+  }
+
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Encode changes to the records.
+   *
+   * @param batch changes to encode.
+   * @param dos stream to write.
+   * @return true - records encoded, otherwise false if values of unsupported types found.
+   * @throws IOException on encoding errors.
+   */
+  private static boolean encode(@NonNull final Storage.Batch batch, @NonNull final DataOutputStream dos)
+      throws IOException {
+    for (final String key : batch.Removed) {
+      dos.writeByte(REMOVE);
+      dos.writeUTF(key);
+    }
+
+    for (final String key : batch.Changed) {
+      final Object value = batch.Data.get(key);
+      final int type;
+
+      try {
+        type = Types.getDataType(value);
+      } catch (@NonNull final IllegalArgumentException ignored) {
+        return false;
+      }
+
+      dos.writeByte(PUT);
+      dos.writeUTF(key);
+      dos.writeByte(type);
+      Types.saveData(dos, type, value);
+    }
+
+    return true;
+  }
+
+  /**
+   * Decode records of the batch.
+   *
+   * @param payload encoded records.
+   * @param keys decoded keys of the records, cleared before decoding.
+   * @param values decoded values of the records, {@link #REMOVED} for remove records.
+   * @throws IOException on decoding errors.
+   */
+  private static void decode(@NonNull final byte[] payload, @NonNull final List<String> keys,
+                             @NonNull final List<Object> values) throws IOException {
+    final ByteArrayInputStream bais = new ByteArrayInputStream(payload);
+    final DataInputStream dis = new DataInputStream(bais);
+
+    keys.clear();
+    values.clear();
+
+    while (bais.available() > 0) {
+      final byte operation = dis.readByte();
+
+      switch (operation) {
+        case REMOVE:
+          keys.add(dis.readUTF());
+          values.add(REMOVED);
+          break;
+
+        case PUT:
+          final String key = dis.readUTF();
+          final int type = dis.readByte();
+
+          final Object value = Types.readData(dis, type);
+          keys.add(key);
+          values.add(value);
+          break;
+
+        default:
+          throw new IOException("Unknown record of the log: " + operation);
+      }
+    }
+  }
+
+  /**
+   * Apply decoded records of the batch to the storage.
+   *
+   * @param keys decoded keys of the records.
+   * @param values decoded values of the records.
+   * @param storage storage to update.
+   */
+  private static void apply(@NonNull final List<String> keys, @NonNull final List<Object> values,
+                            @NonNull final TypedStorage storage) {
+    for (int i = 0, size = keys.size(); i < size; i++) {
+      final Object value = values.get(i);
+
+      if (REMOVED == value) {
+        storage.remove(keys.get(i));
+      } else {
+        storage.put(keys.get(i), value);
+      }
+    }
+  }
+}
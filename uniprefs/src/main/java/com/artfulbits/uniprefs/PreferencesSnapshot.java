@@ -0,0 +1,183 @@
+package com.artfulbits.uniprefs;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import com.artfulbits.uniprefs.storages.KeyHandle;
+import com.artfulbits.uniprefs.storages.TypedStorage;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of the preferences at fixed version of the data. Created by {@link PreferencesUnified#snapshot()} in
+ * O(1), data is shared with preferences and never modified, so multiple reads of the snapshot are consistent.
+ * <p/>
+ * <i>Note: snapshot does not support editing, {@link #edit()} throws {@link UnsupportedOperationException}. Listeners
+ * are never called, data of the snapshot is never changed.</i>
+ */
+public final class PreferencesSnapshot implements SharedPreferences {
+  /* [ MEMBERS ] ================================================================================================== */
+
+  /** Shared read-only data. */
+  @NonNull
+  private final TypedStorage mData;
+  /** Version of the data. */
+  private final int mVersion;
+
+  /* [ CONSTRUCTORS ] ============================================================================================= */
+
+  /**
+   * Create snapshot.
+   *
+   * @param data shared instance of the data.
+   * @param version version of the data.
+   */
+  /* package */ PreferencesSnapshot(@NonNull final TypedStorage data, final int version) {
+    mData = data;
+    mVersion = version;
+  }
+
+  /* [ GETTER / SETTER METHODS ] ================================================================================== */
+
+  /**
+   * Get version of the data.
+   *
+   * @return modification version of the preferences at snapshot creation moment.
+   */
+  public int getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * Get quantity of values in snapshot.
+   *
+   * @return quantity of values.
+   */
+  public int size() {
+    return mData.size();
+  }
+
+  /**
+   * Get int by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public int getInt(@NonNull final KeyHandle handle, final int defValue) {
+    return mData.getInt(handle, defValue);
+  }
+
+  /**
+   * Get long by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public long getLong(@NonNull final KeyHandle handle, final long defValue) {
+    return mData.getLong(handle, defValue);
+  }
+
+  /**
+   * Get float by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public float getFloat(@NonNull final KeyHandle handle, final float defValue) {
+    return mData.getFloat(handle, defValue);
+  }
+
+  /**
+   * Get boolean by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public boolean getBoolean(@NonNull final KeyHandle handle, final boolean defValue) {
+    return mData.getBoolean(handle, defValue);
+  }
+
+  /**
+   * Get string by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public String getString(@NonNull final KeyHandle handle, final String defValue) {
+    return mData.getString(handle, defValue);
+  }
+
+  /* [ Interface SharedPreferences ] ============================================================================== */
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, ?> getAll() {
+    return mData.asMap();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getString(final String key, final String defValue) {
+    return mData.getString(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<String> getStringSet(final String key, final Set<String> defValues) {
+    return mData.getStringSet(key, defValues);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getInt(final String key, final int defValue) {
+    return mData.getInt(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getLong(final String key, final long defValue) {
+    return mData.getLong(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public float getFloat(final String key, final float defValue) {
+    return mData.getFloat(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getBoolean(final String key, final boolean defValue) {
+    return mData.getBoolean(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean contains(final String key) {
+    return mData.contains(key);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Editor edit() {
+    throw new UnsupportedOperationException("Snapshot of the preferences is read-only.");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+    // do nothing, snapshot is never changed
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+    // do nothing, snapshot is never changed
+  }
+}
@@ -7,34 +7,62 @@ import android.content.pm.ApplicationInfo;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import com.artfulbits.uniprefs.actions.FactoryImpl;
+import com.artfulbits.uniprefs.actions.PutPrimitive;
+import com.artfulbits.uniprefs.storages.KeyHandle;
+import com.artfulbits.uniprefs.storages.TypedStorage;
 import com.artfulbits.uniprefs.toolbox.CleanupUtils;
+import com.artfulbits.uniprefs.toolbox.LoadDaemonsFactory;
 import com.artfulbits.uniprefs.toolbox.NullSerialization;
 import com.artfulbits.uniprefs.toolbox.RescheduleException;
+import com.artfulbits.uniprefs.toolbox.SaveBuffers;
 import com.artfulbits.uniprefs.toolbox.SaveDaemonsFactory;
 import com.artfulbits.uniprefs.toolbox.Types;
+import com.artfulbits.uniprefs.toolbox.counters.LoadStatistics;
 import com.artfulbits.uniprefs.toolbox.counters.Statistics;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Shared preferences which implements abstraction for simple replacement of persistence storage. Easily storage can be
@@ -47,7 +75,12 @@ import java.util.concurrent.TimeUnit;
  * in memory commit transaction.</li> <li>Custom names for save background threads. Easy to identify who created the
  * thread and control it lifetime.</li> <li>Save to Disk Thread Pools max size is polite to device resources. CPU Cores
  * count influence on Max number of available threads in thread pool.</li> <li>Merged save transactions, multiple Apply
- * calls merged into one save to disk operation.</li> <li></li> </ol>
+ * calls merged into one save to disk operation.</li> <li>Lock-free reads. Getters use read-only copy of the storage
+ * that is published on each memory commit.</li> <li>Typed memory storage, primitive values are kept without
+ * boxing.</li> <li>O(1) consistent snapshots of the preferences, {@link #getAll()} and {@link #snapshot()}.</li>
+ * <li>Key handles for hot-key lookups without hashing, {@link #handle(String)}.</li> <li>Parallel loading of
+ * different files, asynchronous and lazy opening of the preferences, bulk preload.</li> <li>Log-structured saves
+ * and delta serialization, only modified keys are written to disk.</li> <li></li> </ol>
  *
  * @author Oleksandr Kucherenko
  * @version 1.0 beta
@@ -62,16 +95,31 @@ public final class PreferencesUnified
   public static final String LOG_TAG = "uniprefs";
   /** Default write buffer size. */
   private final static int BUFFER_SIZE = 32 * 1024;
+  /** Temp files older than this age are left by interrupted saves, millis. */
+  private final static long STALE_TEMP_AGE = TimeUnit.MINUTES.toMillis(1);
+  /** Files smaller than this size are read into heap, even for {@link BufferSerialization}. */
+  private final static int MAP_THRESHOLD = 64 * 1024;
   /** Number of CPUs on board. */
   private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+  /** Deadline of the apply save, nanos after request. Older applies run before newer commits. */
+  private static final long APPLY_DEADLINE = TimeUnit.SECONDS.toNanos(1);
+  /** Time given to the executor to start the pending save, nanos. Waiting commit does the save by itself after it. */
+  private static final long SAVE_WATCHDOG = TimeUnit.MILLISECONDS.toNanos(250);
+
+  /** Durability: no forced writes, data reaches the disk when OS decides. The cheapest writes. */
+  public static final int DURABILITY_NONE = 0;
+  /** Durability: file content is forced to the disk before rename, file is never empty or partial after crash. */
+  public static final int DURABILITY_DATA = 1;
+  /** Durability: file content and directory entry are forced to the disk, rename survives crash (API 21+). */
+  public static final int DURABILITY_FULL = 2;
 
   /**
    * Global cache of the preferences. Used for pointing all shared preferences on the same instance of Objects map and
-   * version counter.
+   * version counter. Each file has own loading future, so different files are opened in parallel without contention.
    * <p/>
    * Now strong references instead of weak. Weak references cannot be used for caching.
    */
-  private final static Map<String, Storage> sPool = new HashMap<>();
+  private final static ConcurrentMap<String, StorageLoader> sPool = new ConcurrentHashMap<>();
   /** Statistics calculations. */
   /* package */ final static Statistics sStats = new Statistics();
 
@@ -89,6 +137,9 @@ public final class PreferencesUnified
   /** Memory storage of the shared preferences. */
   @Nullable
   /* package */ final Storage mStorage;
+  /** Loading future of the storage. Reset to <code>null</code> when data is loaded. */
+  @Nullable
+  private volatile StorageLoader mLoader;
 
 	/* ================================= [CONSTRUCTOR] ===================================== */
 
@@ -101,6 +152,19 @@ public final class PreferencesUnified
    */
   public PreferencesUnified(@NonNull final Context context, @NonNull final String filePath,
                             @NonNull final Serialization serializer) {
+    this(context, filePath, serializer, false);
+  }
+
+  /**
+   * Create instance of the shared preferences for provided context and file name.
+   *
+   * @param context application context
+   * @param filePath file name of the preferences storage
+   * @param serializer instance of the storage to use
+   * @param lazy true - do not load data in constructor, loading will be done on first access to data.
+   */
+  private PreferencesUnified(@NonNull final Context context, @NonNull final String filePath,
+                             @NonNull final Serialization serializer, final boolean lazy) {
     final ApplicationInfo appInfo = context.getApplicationInfo();
 
     mContext = context;
@@ -109,36 +173,160 @@ public final class PreferencesUnified
 
     setSerializer(serializer);
 
-    final String key = mFileName.getAbsolutePath();
-    boolean loadingNeeded = false;
+    final StorageLoader loader = loaderOf(mFileName, serializer);
+
+    // use shared settings for very fast initialization
+    mStorage = loader.mStorage;
+
+    mLoader = loader.isDone() ? null : loader;
+
+    initializeDirs();
+
+    if (!lazy) {
+      waitDataInitialization();
+    }
+  }
+
+  /**
+   * Create instance of the shared preferences and load its data in background. Instance is available via returned
+   * future when data is loaded. Calling thread is never blocked. Future fails if loading thread is interrupted while
+   * it waits for the loading started by others.
+   *
+   * @param context application context
+   * @param filePath file name of the preferences storage
+   * @param serializer instance of the storage to use
+   * @param executor executor used for data loading.
+   * @return future of the loaded preferences.
+   */
+  @NonNull
+  public static Future<PreferencesUnified> openAsync(@NonNull final Context context, @NonNull final String filePath,
+                                                     @NonNull final Serialization serializer,
+                                                     @NonNull final Executor executor) {
+    final PreferencesUnified prefs = new PreferencesUnified(context, filePath, serializer, true);
+
+    final FutureTask<PreferencesUnified> task = new FutureTask<>(new Callable<PreferencesUnified>() {
+      @Override
+      public PreferencesUnified call() throws Exception {
+        // not loaded instance is never returned, failure of the loading is the failure of the future
+        prefs.awaitDataInitialization();
+
+        return prefs;
+      }
+    });
+
+    executor.execute(task);
+
+    return task;
+  }
+
+  /**
+   * Load set of the preferences files in parallel on a bounded thread pool. Loaded data is cached in memory pool, so
+   * later created instances of the preferences do not wait for disk I/O. Files already loaded (or loading) by others
+   * are not loaded twice.
+   *
+   * @param context application context
+   * @param files file names of the preferences storages and serializers for them.
+   * @return future of the per-file loading statistics, ready when all files are loaded.
+   */
+  @NonNull
+  public static Future<List<LoadStatistics>> preload(@NonNull final Context context,
+                                                     @NonNull final Map<String, Serialization> files) {
+    final File directory = new File(context.getApplicationInfo().dataDir + "/shared_prefs");
+    final List<StorageLoader> loaders = new ArrayList<>(files.size());
+
+    for (final Entry<String, Serialization> entry : files.entrySet()) {
+      loaders.add(loaderOf(new File(directory, entry.getKey()), entry.getValue()));
+    }
 
-    // temporary storage for preventing GC storage instance destroy
-    Storage storageTmp;
+    // all loaders are done when it runs, collecting of the results never blocks
+    final FutureTask<List<LoadStatistics>> result = new FutureTask<>(new Callable<List<LoadStatistics>>() {
+      @Override
+      public List<LoadStatistics> call() throws Exception {
+        final List<LoadStatistics> stats = new ArrayList<>(loaders.size());
 
-    // singleton initialization of the data, 'double check' pattern used
-    if (null == (storageTmp = sPool.get(key))) {
-      synchronized (sPool) {
-        if (null == (storageTmp = sPool.get(key))) {
-          // we are the first, create shared storage for all others instances
-          sPool.put(key, storageTmp = new Storage());
+        for (final StorageLoader loader : loaders) {
+          loader.get();
 
-          // tell that we are waiting for data loading
-          loadingNeeded = true;
+          stats.add(loader.mStatistics);
         }
+
+        return stats;
       }
+    });
+
+    if (loaders.isEmpty()) {
+      result.run();
+
+      return result;
     }
 
-    // use shared settings for very fast initialization
-    mStorage = storageTmp;
+    // result is completed by the last finished loader: thread of this preload or thread of other opening
+    final AtomicInteger remaining = new AtomicInteger(loaders.size());
+    final Runnable countDown = new Runnable() {
+      @Override
+      public void run() {
+        if (0 == remaining.decrementAndGet()) {
+          result.run();
+        }
+      }
+    };
 
-    initializeDirs();
+    final int threads = Math.max(1, Math.min(CPU_COUNT, loaders.size()));
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), LoadDaemonsFactory.Instance);
+    pool.allowCoreThreadTimeOut(true);
 
-    // try load the data
-    if (loadingNeeded) {
-      initializeData();
+    for (final StorageLoader loader : loaders) {
+      loader.whenDone(countDown);
+
+      // loader started by others is not run twice
+      pool.execute(loader);
     }
 
-    waitDataInitialization();
+    pool.shutdown();
+
+    return result;
+  }
+
+  /**
+   * Create instance of the shared preferences without data loading. Data is loaded on first access to it: any getter
+   * or {@link #edit()} call.
+   *
+   * @param context application context
+   * @param filePath file name of the preferences storage
+   * @param serializer instance of the storage to use
+   * @return instance of the preferences.
+   */
+  @NonNull
+  public static PreferencesUnified openLazy(@NonNull final Context context, @NonNull final String filePath,
+                                            @NonNull final Serialization serializer) {
+    return new PreferencesUnified(context, filePath, serializer, true);
+  }
+
+  /**
+   * Get loader of the file from pool. Creates a new not started loader if file is opened first time.
+   *
+   * @param file file of the preferences.
+   * @param serializer instance of the serializer used for loading.
+   * @return instance of the loader.
+   */
+  @NonNull
+  private static StorageLoader loaderOf(@NonNull final File file, @NonNull final Serialization serializer) {
+    final String key = file.getAbsolutePath();
+    StorageLoader loader = sPool.get(key);
+
+    if (null == loader) {
+      final StorageLoader created = new StorageLoader(file, serializer);
+
+      // only one thread wins, all others use the winner's loader
+      loader = sPool.putIfAbsent(key, created);
+
+      if (null == loader) {
+        loader = created;
+      }
+    }
+
+    return loader;
   }
 
   /**
@@ -222,301 +410,1110 @@ public final class PreferencesUnified
   }
 
   /**
-   * Load settings from disk storage.
+   * Load settings from disk storage. Recovery phase of the load: if main file is missing (process died between
+   * renames of the save) or cannot be de-serialized, data is loaded from backup file and backup is renamed into
+   * place. Not de-serialized main file is moved aside to '{name}.corrupt', it is never overwritten by the older
+   * backup and never becomes the only copy of the data during the next save.
    *
+   * @param storage memory storage to fill.
+   * @param fileName file of the preferences.
+   * @param serializer instance of the serializer.
+   * @param stats loading statistics to fill.
    * @return true - success, otherwise false.
    */
-  private boolean initializeData() {
+  private static boolean initializeData(@NonNull final Storage storage, @NonNull final File fileName,
+                                        @NonNull final Serialization serializer,
+                                        @NonNull final LoadStatistics stats) {
     boolean result = false;
-    byte[] data = null;
-
-    if (mFileName.exists()) {
-      data = new byte[(int) mFileName.length()];
 
-      FileInputStream is = null;
-      FileChannel channel = null;
+    // A/B layout has priority, plain file is dropped by the first save into slots
+    Slots.Slot slot = Slots.exists(fileName) ? Slots.load(fileName) : null;
 
-      try {
-        is = new FileInputStream(mFileName);
+    // superseded slots and plain file mean the full save was killed before removal of the slots, they keep stale data
+    if (null != slot && slot.Superseded && fileName.exists()) {
+      Log.e(LOG_TAG, "Stale slots left by interrupted save are dropped: " + fileName);
 
-        channel = is.getChannel();
-        channel.read(ByteBuffer.wrap(data));
-        channel.close();
+      Slots.delete(fileName);
+      slot = null;
+    }
 
-        is.close();
-      } catch (@NonNull final Throwable ignored) {
-        // ignore all
-      } finally {
-        CleanupUtils.destroy(channel);
-        CleanupUtils.destroy(is);
+    if (null != slot) {
+      synchronized (storage.SaveSync) {
+        storage.Slot = slot.Index;
+        storage.Generation = slot.Generation;
       }
     }
 
     try {
       // this is the LONGEST operation in loading algorithm
-      final Map<String, ?> values = getSerializer().deserialize(data);
+      final Map<String, ?> values;
+      File source = fileName;
 
-      // override values
-      if (null != values && values.size() > 0) {
-        synchronized (mStorage.ModifySync) {
-          mStorage.Objects.putAll(values);
+      if (null != slot) {
+        stats.Bytes = slot.Payload.length;
+        values = serializer.deserialize(slot.Payload);
+      } else {
+        final File backup = new File(fileName.getPath() + ".bak");
+
+        if (!fileName.exists() && backup.exists()) {
+          source = backup;
         }
-      }
 
-      result = true;
-    } catch (@NonNull final Throwable ignored) {
-      Log.e(LOG_TAG, Log.getStackTraceString(ignored));
-    } finally {
-      // after recovering the data increment the storage value
-      mStorage.Version.incrementAndGet();
+        Map<String, ?> loaded;
 
-      // notify all wait's that version is updated
-      synchronized (mStorage.Version) {
-        mStorage.Version.notifyAll();
-      }
-    }
+        try {
+          loaded = readValues(source, serializer, stats);
+        } catch (@NonNull final Exception ex) {
+          if (source == backup || !backup.exists()) {
+            throw ex;
+          }
 
-    return result;
-  }
+          Log.e(LOG_TAG, "Corrupted preferences file, recovery from backup: " + fileName);
+          Log.e(LOG_TAG, Log.getStackTraceString(ex));
 
-  /** Wait till loading process is done. Version of the storage should be 1 or greater. */
-  private void waitDataInitialization() {
-    // wait for the loading operation, it should increase version to 1
-    while (mStorage.Version.get() == 0) {
-      synchronized (mStorage.Version) {
-        try {
-          // we are doing waiting with timeout due to unknown thread which calls us,
-          // that maybe a MAIN thread. So in any case we should try to not block the thread in waiting if
-          // possible.
-          mStorage.Version.wait(16 /* 16 is millis for one video frame in 60fps UI */);
-        } catch (@NonNull final InterruptedException ignored) {
-          // do nothing, this is most likely the shutdown of the process
-          break;
+          source = backup;
+          loaded = readValues(source, serializer, stats);
         }
-      }
-    }
-  }
 
-	/* ================================= [IMPLEMENTATION] ================================== */
+        values = loaded;
 
-  /** {@inheritDoc} */
-  @Override
-  public Map<String, ?> getAll() {
-    synchronized (mStorage.ModifySync) {
-      return Collections.unmodifiableMap(mStorage.Objects);
-    }
-  }
+        // backup replaces the file. Not decoded file is kept aside, decode failure can be transient
+        if (source == backup) {
+          stats.Recovered = true;
+          sStats.Recoveries.incrementAndGet();
 
-  /** {@inheritDoc} */
-  @Override
-  public String getString(final String key, final String defValue) {
-    synchronized (mStorage.ModifySync) {
-      if (mStorage.Objects.containsKey(key)) {
-        return String.valueOf(mStorage.Objects.get(key));
+          if (fileName.exists() && !moveAside(fileName)) {
+            Log.e(LOG_TAG, "Corrupted preferences file cannot be moved aside: " + fileName);
+          } else if (backup.renameTo(fileName)) {
+            source = fileName;
+          }
+        }
       }
-    }
 
-    return defValue;
-  }
+      // slots are never bound to the log
+      final File logFile = Journal.of(fileName);
+      final boolean replay = (null == slot) && logFile.exists();
 
-  /** {@inheritDoc} */
-  @SuppressWarnings("unchecked")
-  @Override
-  public Set<String> getStringSet(final String key, final Set<String> defValues) {
-    synchronized (mStorage.ModifySync) {
-      if (mStorage.Objects.containsKey(key)) {
-        final Object item = (mStorage.Objects.get(key));
+      // override values
+      if ((null != values && values.size() > 0) || replay) {
+        synchronized (storage.ModifySync) {
+          final TypedStorage loaded = storage.edit();
 
-        if (item instanceof Set<?>) {
-          return (Set<String>) item;
+          if (null != values) {
+            loaded.putAll(values);
+          }
+
+          // changes saved in log-structured mode after the last full save
+          if (replay) {
+            Journal.replay(logFile, source, loaded);
+          }
+
+          stats.Values = loaded.size();
+          storage.publish(loaded);
         }
       }
+
+      result = true;
+    } catch (@NonNull final Throwable ignored) {
+      Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+    } finally {
+      // after recovering the data increment the storage value, loaded data is equal to the disk state
+      storage.Persisted = storage.Version.incrementAndGet();
+      storage.Failed = storage.Persisted;
     }
 
-    return defValues;
-  }
+    stats.Success = result;
 
-  /** {@inheritDoc} */
-  @Override
-  public int getInt(final String key, final int defValue) {
-    synchronized (mStorage.ModifySync) {
-      if (mStorage.Objects.containsKey(key)) {
-        final Object item = (mStorage.Objects.get(key));
+    return result;
+  }
 
-        if (item instanceof Number) {
-          return ((Number) item).intValue();
-        }
-      }
-    }
+  /**
+   * Move not decoded preferences file aside to '{name}.corrupt', previous corrupted copy is replaced.
+   *
+   * @param fileName file of the preferences.
+   * @return true - file moved, otherwise false.
+   */
+  private static boolean moveAside(@NonNull final File fileName) {
+    final File corrupt = new File(fileName.getPath() + ".corrupt");
 
-    return defValue;
+    return (!corrupt.exists() || corrupt.delete()) && fileName.renameTo(corrupt);
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public long getLong(final String key, final long defValue) {
-    synchronized (mStorage.ModifySync) {
-      if (mStorage.Objects.containsKey(key)) {
-        final Object item = (mStorage.Objects.get(key));
+  /**
+   * Remove temp files left by interrupted saves of the preferences file. Temp file of the running save is never older
+   * than the age limit, so saves of other processes and threads are not affected.
+   *
+   * @param fileName file of the preferences.
+   * @param age minimal age of the temp file for removal, millis.
+   * @return quantity of removed files.
+   */
+  /* package */ static int sweepTempFiles(@NonNull final File fileName, final long age) {
+    final String suffix = "-" + fileName.getName() + ".temp";
+    final long expired = System.currentTimeMillis() - age;
+
+    // temp file name is '{nanoTime}-{name}.temp', nano time can be negative
+    final File[] temps = fileName.getParentFile().listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(suffix) && name.length() > suffix.length() &&
+            name.substring(0, name.length() - suffix.length()).matches("-?\\d+");
+      }
+    });
 
-        if (item instanceof Number) {
-          return ((Number) item).longValue();
+    int removed = 0;
+
+    if (null != temps) {
+      for (final File temp : temps) {
+        if (temp.lastModified() < expired && temp.delete()) {
+          removed++;
         }
       }
     }
 
-    return defValue;
+    if (removed > 0) {
+      sStats.SweptTemps.addAndGet(removed);
+      Log.i(LOG_TAG, "Removed temp files of interrupted saves: " + removed + ", " + fileName);
+    }
+
+    return removed;
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public float getFloat(final String key, final float defValue) {
-    synchronized (mStorage.ModifySync) {
-      if (mStorage.Objects.containsKey(key)) {
-        final Object item = (mStorage.Objects.get(key));
+  /**
+   * Read and de-serialize the preferences file.
+   *
+   * @param fileName file to read.
+   * @param serializer instance of the serializer.
+   * @param stats loading statistics to fill.
+   * @return extracted collection of values.
+   * @throws Exception on read or de-serialization errors, including <code>null</code> result for not empty file.
+   */
+  private static Map<String, ?> readValues(@NonNull final File fileName, @NonNull final Serialization serializer,
+                                           @NonNull final LoadStatistics stats) throws Exception {
+    final boolean buffered = (serializer instanceof BufferSerialization);
+    ByteBuffer mapped = null;
+    byte[] data = null;
 
-        if (item instanceof Number) {
-          return ((Number) item).floatValue();
-        }
+    if (fileName.exists()) {
+      // big files are decoded directly from page cache, without copy to the heap
+      if (buffered && fileName.length() >= MAP_THRESHOLD) {
+        mapped = mapFile(fileName, stats);
+      }
+
+      if (null == mapped && !(serializer instanceof StreamingSerialization)) {
+        data = readFile(fileName, stats);
       }
     }
 
-    return defValue;
-  }
+    // serializer works with buffers only, wrap the heap copy
+    if (buffered && null == mapped && null != data) {
+      mapped = ByteBuffer.wrap(data, 0, (int) stats.Bytes);
+    }
 
-  /** {@inheritDoc} */
-  @Override
-  public boolean getBoolean(final String key, final boolean defValue) {
-    synchronized (mStorage.ModifySync) {
-      if (mStorage.Objects.containsKey(key)) {
-        final Object item = (mStorage.Objects.get(key));
+    final Map<String, ?> values;
 
-        if (item instanceof Boolean) {
-          return (Boolean) item;
-        }
-      }
+    if (null != mapped) {
+      values = ((BufferSerialization) serializer).deserialize(mapped);
+    } else if (null == data && serializer instanceof StreamingSerialization && fileName.exists()) {
+      values = streamFile(fileName, (StreamingSerialization) serializer, stats);
+    } else {
+      values = serializer.deserialize(data);
     }
 
-    return defValue;
-  }
-
-  /** {@inheritDoc} */
-  @Override
-  public boolean contains(final String key) {
-    synchronized (mStorage.ModifySync) {
-      return mStorage.Objects.containsKey(key);
+    // serializers that hide own errors return nothing for not empty file
+    if (null == values && fileName.length() > 0) {
+      throw new IOException("Preferences file is not de-serialized: " + fileName);
     }
+
+    return values;
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Read whole file into byte array.
+   *
+   * @param fileName file to read.
+   * @param stats loading statistics to fill.
+   * @return content of the file.
+   */
   @NonNull
-  @Override
-  public Editor edit() {
-    return new EditorImpl(this);
-  }
+  private static byte[] readFile(@NonNull final File fileName, @NonNull final LoadStatistics stats) {
+    final byte[] data = new byte[(int) fileName.length()];
 
-	/* ================================= [SCHEDULED SAVE] ================================== */
+    FileInputStream is = null;
+    FileChannel channel = null;
 
-  /** Global queue of save to disk requests for shared preferences. */
-  private final static UniqueQueue sQueue = new UniqueQueue();
+    try {
+      is = new FileInputStream(fileName);
 
-  /** Save files thread pool. Limit it to the COREs on dives. */
-  private final static ThreadPoolExecutor sThreadPool = new ThreadPoolExecutor(0, CPU_COUNT, 30L,
-      TimeUnit.SECONDS, sQueue, SaveDaemonsFactory.Instance);
+      channel = is.getChannel();
+      stats.Bytes = channel.read(ByteBuffer.wrap(data));
+      channel.close();
 
-  /** Schedule a save operation in thread pool. */
-  private void scheduleCommitToDisk() {
-    sThreadPool.execute(this);
+      is.close();
+    } catch (@NonNull final Throwable ignored) {
+      // ignore all
+    } finally {
+      CleanupUtils.destroy(channel);
+      CleanupUtils.destroy(is);
+    }
+
+    return data;
   }
 
   /**
-   * Forces Sync save to disk.
+   * De-serialize file content directly from the file stream.
    *
-   * @return <code>true</code> on success, otherwise <code>false</code>.
+   * @param fileName file to read.
+   * @param serializer instance of the streaming serializer.
+   * @param stats loading statistics to fill.
+   * @return extracted collection of values.
+   * @throws IOException on read error.
    */
-  private boolean forceCommitToDisk() {
-    synchronized (mStorage) {
-      scheduleCommitToDisk();
+  private static Map<String, ?> streamFile(@NonNull final File fileName,
+                                           @NonNull final StreamingSerialization serializer,
+                                           @NonNull final LoadStatistics stats) throws IOException {
+    final InputStream is = new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE);
 
-      // TODO: how to confirm that thread does not already complete own job???
+    try {
+      stats.Bytes = fileName.length();
 
-      // wait for confirmation of save thread complete
-      try {
-        mStorage.wait();
-      } catch (@NonNull final InterruptedException ignored) {
-        return false;
-      }
+      return serializer.deserialize(is);
+    } finally {
+      CleanupUtils.destroy(is);
     }
-
-    return true;
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public final void run() {
-    boolean noError = saveToDisk(mStorage, mStorageDir, mFileName, getSerializer());
+  /**
+   * Map file into memory in read-only mode.
+   *
+   * @param fileName file to map.
+   * @param stats loading statistics to fill.
+   * @return mapped buffer, otherwise <code>null</code> on any error.
+   */
+  @Nullable
+  private static ByteBuffer mapFile(@NonNull final File fileName, @NonNull final LoadStatistics stats) {
+    FileInputStream is = null;
+    FileChannel channel = null;
 
-    // in case of failure reschedule save operation
-    if (!noError && !sThreadPool.isShutdown()) {
-      sStats.RescheduledSaves.incrementAndGet();
+    try {
+      is = new FileInputStream(fileName);
+      channel = is.getChannel();
+
+      // mapping stays valid after channel close
+      final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      stats.Bytes = mapped.remaining();
 
-      sThreadPool.execute(this);
+      return mapped;
+    } catch (@NonNull final Throwable ignored) {
+      Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+    } finally {
+      CleanupUtils.destroy(channel);
+      CleanupUtils.destroy(is);
     }
 
-    // notify all waiters about done save operation
-    if (noError) {
-      synchronized (mStorage) {
-        mStorage.notifyAll();
-      }
+    return null;
+  }
 
-      sStats.DoneSaves.incrementAndGet();
+  /**
+   * Wait till loading process is done. Version of the storage should be 1 or greater. If nobody started the loading
+   * yet, it is done by calling thread. Interrupted waiting keeps the interrupted state of the thread, data is not
+   * loaded and the next access waits for it again.
+   */
+  private void waitDataInitialization() {
+    try {
+      awaitDataInitialization();
+    } catch (@NonNull final InterruptedException ignored) {
+      // this is most likely the shutdown of the process, let the caller know about it
+      Thread.currentThread().interrupt();
+    } catch (@NonNull final ExecutionException ignored) {
+      Log.e(LOG_TAG, Log.getStackTraceString(ignored));
     }
   }
 
   /**
-   * Do serialization to the disk of the current shared preference data content. It always happens in <b>background
-   * thread</b>.
-   *
-   * @return <code>true</code> - save done, otherwise <code>false</code>.
+   * Wait till loading process is done, interruption of the thread is postponed till the end of waiting. Editors are
+   * applied on top of the loaded data only, otherwise their save replaces the file by the partial data.
    */
-  private static boolean saveToDisk(@NonNull final Storage storage, final File dir, @NonNull final File file,
-                                    @NonNull final Serialization serializer) {
-    final int version = storage.Version.get();
+  private void waitDataUninterruptibly() {
+    // loading by calling thread should not be broken by interruptible reads
+    boolean interrupted = Thread.interrupted();
 
-    final long timestamp = System.nanoTime();
-    final File bakFile = new File(dir, file.getName() + ".bak");
-    final File tmpFile = new File(dir, timestamp + "-" + file.getName() + ".temp");
+    try {
+      while (true) {
+        try {
+          awaitDataInitialization();
+          return;
+        } catch (@NonNull final InterruptedException ignored) {
+          interrupted = true;
+        } catch (@NonNull final ExecutionException ignored) {
+          Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+          return;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
 
-    // adjust priority base on our load
-    Thread.currentThread().setPriority(suggestThreadPriority());
+  /**
+   * Wait till loading process is done. If nobody started the loading yet, it is done by calling thread.
+   *
+   * @throws InterruptedException waiting thread interrupted, data is not loaded yet.
+   * @throws ExecutionException loading failed.
+   */
+  private void awaitDataInitialization() throws InterruptedException, ExecutionException {
+    final StorageLoader loader = mLoader;
 
-    boolean noError = true;
+    if (null == loader) {
+      return;
+    }
 
-    // create a new file with data
-    try {
-      // get read-only version of data for synchronization
-      final Map<String, Object> toSave = Collections.unmodifiableMap(storage.Objects);
+    // first opener loads the data in own thread, all others wait for the same future
+    loader.run();
+    loader.get();
 
-      // serialize finally
-      final byte[] data = serializer.serialize(toSave);
+    mLoader = null;
+  }
 
-      // version watchdog, async modifications possible. serialize is a long operation.
-      if (storage.Version.get() != version) {
-        throw new RescheduleException("Collection modified during serialization. Reschedule is needed.");
-        // throw new RuntimeException("Reschedule of synchronization job is required. Expected version does
-        // not match current.");
+  /**
+   * Get loaded data of the storage.
+   *
+   * @return published data of the storage.
+   */
+  @NonNull
+  private TypedStorage data() {
+    // cheap check, volatile read only
+    if (null != mLoader) {
+      waitDataInitialization();
+    }
+
+    return mStorage.Data;
+  }
+
+	/* ================================= [IMPLEMENTATION] ================================== */
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, ?> getAll() {
+    // shared data is read-only and never modified, its view is safe for iteration from any thread
+    return data().share().asMap();
+  }
+
+  /**
+   * Get read-only view of the preferences at current version of the data. Operation is O(1), no copy of the data is
+   * done. All reads from the snapshot are consistent with each other.
+   *
+   * @return instance of the snapshot.
+   */
+  @NonNull
+  public PreferencesSnapshot snapshot() {
+    waitDataInitialization();
+
+    // data and version are changed together inside modify section
+    synchronized (mStorage.ModifySync) {
+      return new PreferencesSnapshot(mStorage.Data.share(), mStorage.Version.get());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getString(final String key, final String defValue) {
+    return data().getString(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<String> getStringSet(final String key, final Set<String> defValues) {
+    return data().getStringSet(key, defValues);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getInt(final String key, final int defValue) {
+    return data().getInt(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getLong(final String key, final long defValue) {
+    return data().getLong(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public float getFloat(final String key, final float defValue) {
+    return data().getFloat(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getBoolean(final String key, final boolean defValue) {
+    return data().getBoolean(key, defValue);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean contains(final String key) {
+    return data().contains(key);
+  }
+
+  /**
+   * Create handle of the key for hot-key lookups. Handle is bound to the current slot of the key, if key exists.
+   *
+   * @param key key name.
+   * @return instance of the handle.
+   */
+  @NonNull
+  public KeyHandle handle(@NonNull final String key) {
+    final KeyHandle handle = new KeyHandle(key);
+
+    // resolve slot of the key, lazy instance is not forced to load the data
+    if (null == mLoader) {
+      mStorage.Data.contains(handle);
+    }
+
+    return handle;
+  }
+
+  /**
+   * Get string by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public String getString(@NonNull final KeyHandle handle, final String defValue) {
+    return data().getString(handle, defValue);
+  }
+
+  /**
+   * Get set of strings by key handle.
+   *
+   * @param handle key handle.
+   * @param defValues value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public Set<String> getStringSet(@NonNull final KeyHandle handle, final Set<String> defValues) {
+    return data().getStringSet(handle, defValues);
+  }
+
+  /**
+   * Get int by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public int getInt(@NonNull final KeyHandle handle, final int defValue) {
+    return data().getInt(handle, defValue);
+  }
+
+  /**
+   * Get long by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public long getLong(@NonNull final KeyHandle handle, final long defValue) {
+    return data().getLong(handle, defValue);
+  }
+
+  /**
+   * Get float by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public float getFloat(@NonNull final KeyHandle handle, final float defValue) {
+    return data().getFloat(handle, defValue);
+  }
+
+  /**
+   * Get boolean by key handle.
+   *
+   * @param handle key handle.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public boolean getBoolean(@NonNull final KeyHandle handle, final boolean defValue) {
+    return data().getBoolean(handle, defValue);
+  }
+
+  /**
+   * Check is preferences contains value for key handle.
+   *
+   * @param handle key handle.
+   * @return true - value exists, otherwise false.
+   */
+  public boolean contains(@NonNull final KeyHandle handle) {
+    return data().contains(handle);
+  }
+
+  /** {@inheritDoc} */
+  @NonNull
+  @Override
+  public UnifiedEditor edit() {
+    // changes should be applied on top of the loaded data, even by interrupted thread
+    waitDataUninterruptibly();
+
+    if (mRecycleEditors) {
+      final EditorImpl recycled = mRecycled.getAndSet(null);
+
+      if (null != recycled) {
+        return recycled.reset();
       }
+    }
 
-      if (null == data || 0 == data.length) {
+    return new EditorImpl(this);
+  }
+
+	/* ================================= [SCHEDULED SAVE] ================================== */
+
+  /** Global queue of save to disk requests for shared preferences. */
+  private final static UniqueQueue sQueue = new UniqueQueue();
+
+  /** Save files thread pool. Limit it to the COREs on dives. */
+  private final static ThreadPoolExecutor sThreadPool = new ThreadPoolExecutor(0, CPU_COUNT, 30L,
+      TimeUnit.SECONDS, sQueue, SaveDaemonsFactory.Instance);
+
+  /** Executor of the saves to disk. Default: {@link #sThreadPool}. */
+  private static volatile Executor sSaveExecutor = sThreadPool;
+
+  /** Timer of the coalescing windows. Thread is released when there are no pending windows. */
+  private final static ScheduledThreadPoolExecutor sTimer = newTimer();
+
+  /** Minimal delay of the save after apply, nanos. Zero - coalescing window is disabled. */
+  private volatile long mCoalesceDelay;
+  /** Maximum delay of the save after first apply of the window, nanos. */
+  private volatile long mCoalesceLatency;
+  /** Maximum quantity of memory commits in window, save starts immediately when reached. */
+  private volatile int mCoalesceEdits;
+  /** Save of the coalescing window, fired by timer. */
+  private final Runnable mWindowSave = new Runnable() {
+    @Override
+    public void run() {
+      onWindowTimer();
+    }
+  };
+
+  /** Save of the shutdown guard. It is not a request of the lane, saves are serialized only by SaveSync. */
+  private final Runnable mShutdownSave = new Runnable() {
+    @Override
+    public void run() {
+      if (!save() && !isShutdown(sSaveExecutor)) {
+        sStats.RescheduledSaves.incrementAndGet();
+
+        executeSave(false);
+      }
+    }
+  };
+
+  /**
+   * Create timer of the coalescing windows.
+   *
+   * @return instance of the timer.
+   */
+  @NonNull
+  private static ScheduledThreadPoolExecutor newTimer() {
+    final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, SaveDaemonsFactory.Instance);
+    timer.setKeepAliveTime(30L, TimeUnit.SECONDS);
+    timer.allowCoreThreadTimeOut(true);
+
+    return timer;
+  }
+
+  /**
+   * Replace executor of the background saves for all preferences. Allows to share application I/O pool, to pin saves
+   * to one thread or to run them on virtual threads of the modern JVM. Save requests of the same file are
+   * de-duplicated before they reach the executor, saves of the same file are never done in parallel and failed saves
+   * are rescheduled on the executor. Saves rejected by the executor are done on the calling thread. I/O buffers are
+   * reused only by threads of the default pool.
+   * <p/>
+   * <i>Note: executor may drop requests (discard policy, shutdownNow) and it may be busy with the thread that waits
+   * for the save. Commit waiting for the save that is not started in {@link #SAVE_WATCHDOG} does it on the calling
+   * thread, so {@link Editor#commit()} done on a thread of the single-threaded executor is slowed down by this delay,
+   * use {@link Editor#apply()} there. Request of apply not started in time is sent to the executor once more.</i>
+   *
+   * @param executor executor of the saves, <code>null</code> - restore the default thread pool.
+   */
+  public static void setSaveExecutor(@Nullable final Executor executor) {
+    sSaveExecutor = (null == executor) ? sThreadPool : executor;
+  }
+
+  /**
+   * Get executor of the background saves.
+   *
+   * @return executor of the saves.
+   */
+  @NonNull
+  public static Executor getSaveExecutor() {
+    return sSaveExecutor;
+  }
+
+  /**
+   * Configure coalescing window of {@link Editor#apply()} saves. Save of the storage is delayed, so bursts of applies
+   * are merged into one physical write to disk. Each apply extends the window by minimal delay, but save is never
+   * delayed longer than maximum latency after the first apply of the window. Save starts immediately when quantity of
+   * pending memory commits reaches the limit. {@link Editor#commit()} is never delayed.
+   *
+   * @param minDelay minimal delay of the save after apply. Zero or negative value disables coalescing window.
+   * @param maxLatency maximum delay of the save after the first apply of the window.
+   * @param unit time unit of the delays.
+   * @param maxPendingEdits maximum quantity of pending memory commits. Zero or negative value - no limit.
+   */
+  public void setWriteCoalescing(final long minDelay, final long maxLatency, @NonNull final TimeUnit unit,
+                                 final int maxPendingEdits) {
+    mCoalesceLatency = unit.toNanos(Math.max(minDelay, maxLatency));
+    mCoalesceEdits = (maxPendingEdits <= 0) ? Integer.MAX_VALUE : maxPendingEdits;
+    mCoalesceDelay = unit.toNanos(Math.max(0, minDelay));
+  }
+
+  /** Schedule a save operation in thread pool. Save is delayed if coalescing window is configured. */
+  private void scheduleCommitToDisk() {
+    final long delay = mCoalesceDelay;
+
+    if (delay <= 0 || mStorage.Edits >= mCoalesceEdits) {
+      executeSave(false);
+      return;
+    }
+
+    final long now = System.nanoTime();
+
+    synchronized (mStorage) {
+      if (mStorage.WindowOpened) {
+        // extend the window, but respect the latency bound
+        mStorage.WindowDeadline = Math.min(now + delay, mStorage.WindowStart + mCoalesceLatency);
+        return;
+      }
+
+      mStorage.WindowOpened = true;
+      mStorage.WindowStart = now;
+      mStorage.WindowDeadline = now + delay;
+    }
+
+    sTimer.schedule(mWindowSave, delay, TimeUnit.NANOSECONDS);
+  }
+
+  /** Coalescing window timer. Start save if window deadline reached, otherwise wait for the deadline. */
+  private void onWindowTimer() {
+    synchronized (mStorage) {
+      // window already saved by reaching the edits limit or by commit
+      if (!mStorage.WindowOpened) {
+        return;
+      }
+
+      final long remaining = mStorage.WindowDeadline - System.nanoTime();
+
+      if (remaining > 0) {
+        sTimer.schedule(mWindowSave, remaining, TimeUnit.NANOSECONDS);
+        return;
+      }
+
+      mStorage.WindowOpened = false;
+    }
+
+    executeSave(false);
+  }
+
+  /**
+   * Request save of the storage. Saves of the storage go through the serial lane: request is sent to the executor
+   * only if lane is idle, request done during the running save marks the lane dirty and the save is executed once
+   * more after it. Pending save will write the latest data, so other requests are skipped.
+   * <p/>
+   * Each request has deadline: commits and saves of critical files are due immediately, applies after
+   * {@link #APPLY_DEADLINE}. Pending save takes the earliest deadline of its requests.
+   *
+   * @param sync true - request of the blocking commit.
+   */
+  private void executeSave(final boolean sync) {
+    final AtomicInteger state = mStorage.SaveState;
+    final boolean urgent = sync || mStorage.Critical;
+    final long now = System.nanoTime();
+    final long deadline = urgent ? now : now + APPLY_DEADLINE;
+
+    for (; ; ) {
+      switch (state.get()) {
+        case Storage.SAVE_IDLE:
+          if (state.compareAndSet(Storage.SAVE_IDLE, Storage.SAVE_PENDING)) {
+            sStats.SetSaves.incrementAndGet();
+            mStorage.SaveDeadline.set(deadline);
+            submitSave();
+
+            return;
+          }
+          break;
+
+        case Storage.SAVE_RUNNING:
+          if (state.compareAndSet(Storage.SAVE_RUNNING, Storage.SAVE_DIRTY)) {
+            sStats.SkippedSaves.incrementAndGet();
+            mStorage.SaveDeadline.set(deadline);
+
+            return;
+          }
+          break;
+
+        case Storage.SAVE_PENDING:
+          sStats.SkippedSaves.incrementAndGet();
+
+          // custom executor lost the request or it is stuck, send it once more. The late copy finds the lane served
+          if (sThreadPool != sSaveExecutor && now - mStorage.SaveSubmitted > SAVE_WATCHDOG) {
+            sStats.RescheduledSaves.incrementAndGet();
+            mStorage.lowerDeadline(deadline);
+            trySubmitSave();
+
+            return;
+          }
+
+          // queued apply becomes urgent, request re-enters the pool ahead of applies. The lane executes only one
+          // of the copies, the other one returns immediately
+          if (mStorage.lowerDeadline(deadline) && urgent && sThreadPool == sSaveExecutor) {
+            trySubmitSave();
+          }
+
+          return;
+
+        default:
+          sStats.SkippedSaves.incrementAndGet();
+          mStorage.lowerDeadline(deadline);
+
+          return;
+      }
+    }
+  }
+
+  /** Send pending save of the lane to the executor. If executor does not accept saves, save on the calling thread. */
+  private void submitSave() {
+    if (!trySubmitSave()) {
+      run();
+    }
+  }
+
+  /**
+   * Try to send pending save of the lane to the executor.
+   *
+   * @return <code>true</code> - save is sent, otherwise <code>false</code> if executor rejected the request.
+   */
+  private boolean trySubmitSave() {
+    mStorage.SaveSubmitted = System.nanoTime();
+
+    try {
+      sSaveExecutor.execute(this);
+    } catch (@NonNull final RejectedExecutionException ignored) {
+      Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Move the save lane after the save. Lane is released, failed save or save requested during the save is sent to
+   * the executor again.
+   *
+   * @param noError result of the save.
+   */
+  private void completeSave(final boolean noError) {
+    final AtomicInteger state = mStorage.SaveState;
+
+    // in case of failure reschedule save operation, waiters already know about failure
+    if (!noError) {
+      if (isShutdown(sSaveExecutor)) {
+        state.set(Storage.SAVE_IDLE);
+      } else {
+        sStats.RescheduledSaves.incrementAndGet();
+
+        state.set(Storage.SAVE_PENDING);
+
+        if (!trySubmitSave()) {
+          state.set(Storage.SAVE_IDLE);
+        }
+      }
+
+      return;
+    }
+
+    // data changed during the save, save it once more
+    if (!state.compareAndSet(Storage.SAVE_RUNNING, Storage.SAVE_IDLE)) {
+      sStats.RerunSaves.incrementAndGet();
+
+      state.set(Storage.SAVE_PENDING);
+      submitSave();
+    }
+  }
+
+  /**
+   * Is executor does not accept tasks anymore.
+   *
+   * @param executor executor to check.
+   * @return true - executor is shut down, otherwise false.
+   */
+  private static boolean isShutdown(@NonNull final Executor executor) {
+    return (executor instanceof ExecutorService) && ((ExecutorService) executor).isShutdown();
+  }
+
+  /**
+   * Forces Sync save to disk. Waits until committed version of the data is persisted, save done before the call or
+   * save of the merged request are confirmed by version too.
+   *
+   * @param version committed version of the data.
+   * @return <code>true</code> on success, otherwise <code>false</code>.
+   */
+  private boolean forceCommitToDisk(final int version) {
+    executeSave(true);
+
+    try {
+      return awaitPersisted(version, Long.MAX_VALUE);
+    } catch (@NonNull final InterruptedException ignored) {
+      Thread.currentThread().interrupt();
+
+      return false;
+    } catch (@NonNull final TimeoutException ignored) {
+      // never happens, wait is not limited
+      return false;
+    }
+  }
+
+  /**
+   * Wait until committed version of the data is persisted. Pending save that is not started by the executor in
+   * {@link #SAVE_WATCHDOG} is taken over and done on the calling thread: executor dropped the request or it is busy
+   * with the calling thread itself.
+   *
+   * @param version committed version of the data.
+   * @param timeout maximum time to wait, nanos. {@link Long#MAX_VALUE} - no limit.
+   * @return <code>true</code> - version persisted, otherwise <code>false</code> if its save failed.
+   * @throws InterruptedException waiting thread interrupted.
+   * @throws TimeoutException version is not persisted in time.
+   */
+  private boolean awaitPersisted(final int version, final long timeout) throws InterruptedException,
+      TimeoutException {
+    final long started = System.nanoTime();
+
+    for (; ; ) {
+      final long remaining = timeout - (System.nanoTime() - started);
+
+      try {
+        return mStorage.awaitPersisted(version, Math.min(remaining, SAVE_WATCHDOG));
+      } catch (@NonNull final TimeoutException ex) {
+        if (remaining <= SAVE_WATCHDOG) {
+          throw ex;
+        }
+      }
+
+      // pending lane is taken from the executor, its late request finds the lane served and returns
+      if (mStorage.SaveState.compareAndSet(Storage.SAVE_PENDING, Storage.SAVE_RUNNING)) {
+        sStats.RescheduledSaves.incrementAndGet();
+
+        completeSave(save());
+      }
+    }
+  }
+
+  /**
+   * Schedule urgent save to disk without waiting for it.
+   *
+   * @param version committed version of the data.
+   * @return future of the save result.
+   */
+  @NonNull
+  private Future<Boolean> commitToDiskAsync(final int version) {
+    executeSave(true);
+
+    return new PersistedFuture(this, version);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void run() {
+    // duplicate request (resent by watchdog, promoted or taken over by the waiting commit), lane is served already
+    if (!mStorage.SaveState.compareAndSet(Storage.SAVE_PENDING, Storage.SAVE_RUNNING)) {
+      return;
+    }
+
+    completeSave(save());
+  }
+
+  /**
+   * Save the storage on the calling thread. Waiters are notified by persisted version.
+   *
+   * @return <code>true</code> - save done, otherwise <code>false</code>.
+   */
+  private boolean save() {
+    final boolean noError = saveToDisk(mStorage, mStorageDir, mFileName, getSerializer());
+
+    if (noError) {
+      sStats.DoneSaves.incrementAndGet();
+    }
+
+    return noError;
+  }
+
+  /**
+   * Do serialization to the disk of the current shared preference data content. It always happens in <b>background
+   * thread</b>.
+   *
+   * @return <code>true</code> - save done, otherwise <code>false</code>.
+   */
+  private static boolean saveToDisk(@NonNull final Storage storage, final File dir, @NonNull final File file,
+                                    @NonNull final Serialization serializer) {
+    synchronized (storage.SaveSync) {
+      // pending window is saved by this save. Window is closed before the drain: apply done after it opens a new
+      // window and is saved by its timer, apply done before the drain is in the batch
+      synchronized (storage) {
+        storage.WindowOpened = false;
+      }
+
+      final Storage.Batch batch = storage.drain();
+
+      synchronized (storage) {
+        // nothing changed since the last save, merged save request
+        if (batch.isEmpty()) {
+          storage.persisted(batch.Version);
+          removeShutdownGuard(storage);
+
+          return true;
+        }
+      }
+
+      // adjust priority base on our load. Save can be done on the thread of the caller (waiting commit, rejected
+      // request), its priority is restored after the save
+      final Thread thread = Thread.currentThread();
+      final int priority = thread.getPriority();
+      final boolean noError;
+
+      thread.setPriority(suggestThreadPriority(storage));
+
+      try {
+        noError = saveToDisk(storage, dir, file, serializer, batch);
+      } finally {
+        thread.setPriority(priority);
+      }
+
+      if (noError) {
+        sStats.written(batch.Edits);
+
+        synchronized (storage) {
+          storage.persisted(batch.Version);
+        }
+      } else {
+        // not saved changes should be saved by next attempt
+        storage.restore(batch);
+
+        synchronized (storage) {
+          storage.failed(batch.Version);
+        }
+      }
+
+      return noError;
+    }
+  }
+
+  /**
+   * Save changes of the data to the disk. In log-structured mode modified keys are appended to the log, full save of
+   * the data is done only when log becomes too big (compaction). Batch is a consistent copy of the data, writers are
+   * never blocked by save and modifications done during the save are tracked for the next one.
+   *
+   * @param storage memory storage.
+   * @param dir directory of the preferences.
+   * @param file file of the preferences.
+   * @param serializer instance of the serializer.
+   * @param batch changes to save.
+   * @return <code>true</code> - save done, otherwise <code>false</code>.
+   */
+  private static boolean saveToDisk(@NonNull final Storage storage, final File dir, @NonNull final File file,
+                                    @NonNull final Serialization serializer, @NonNull final Storage.Batch batch) {
+    final boolean journal = storage.isJournal();
+    final boolean slots = storage.SlotLayout;
+    final int durability = storage.Durability;
+    final File logFile = Journal.of(file);
+
+    final long timestamp = System.nanoTime();
+    final File bakFile = new File(dir, file.getName() + ".bak");
+    final File tmpFile = new File(dir, timestamp + "-" + file.getName() + ".temp");
+
+    // A/B layout, the older slot is overwritten in place
+    if (slots) {
+      return saveToSlot(storage, dir, file, serializer, batch, durability);
+    }
+
+    // log-structured mode, append modified keys only. Log is bound to the plain file, slots left from A/B layout
+    // have priority on load and should be replaced by the full save first
+    if (journal && !batch.Full && storage.Slot < 0) {
+      try {
+        final boolean created = !logFile.exists();
+
+        if (Journal.append(logFile, file, batch, DURABILITY_NONE != durability) &&
+            !Journal.isCompactionNeeded(logFile, file)) {
+          // new log file, its directory entry should be durable too
+          if (created && DURABILITY_FULL == durability && !syncDirectory(dir)) {
+            return false;
+          }
+
+          synchronized (storage) {
+            removeShutdownGuard(storage);
+          }
+
+          return true;
+        }
+      } catch (@NonNull final Throwable ignored) {
+        // log is not available, do full save of the data
+        Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+      }
+    }
+
+    boolean noError = true;
+    boolean dropped = false;
+
+    // create a new file with data
+    try {
+      // read-only version of data for synchronization
+      final Map<String, Object> toSave = batch.Data.asMap();
+
+      final boolean streaming = (serializer instanceof StreamingSerialization);
+      byte[] data = null;
+
+      if (streaming) {
+        // streaming serializer writes directly to the file, no intermediate copy of the data
+        final FileOutputStream fos = new FileOutputStream(tmpFile);
+        final OutputStream os = SaveBuffers.current().buffered(fos);
+
+        try {
+          ((StreamingSerialization) serializer).serialize(toSave, os);
+          os.flush();
+          force(fos, durability);
+        } finally {
+          os.close(); // that will close FOS too
+        }
+      } else if (serializer instanceof DeltaSerialization) {
+        // file is rewritten on log compaction, changes logged by previous saves are unknown for serializer
+        final boolean full = batch.Full || journal;
+
+        final Set<String> none = Collections.emptySet();
+
+        data = ((DeltaSerialization) serializer).serialize(toSave, full ? none : batch.Changed,
+            full ? none : batch.Removed, full);
+      } else {
+        // serialize finally
+        data = serializer.serialize(toSave);
+      }
+
+      if (streaming ? 0 == tmpFile.length() : (null == data || 0 == data.length)) {
         // empty data means drop of the file on disk to us
         tmpFile.delete();
-      } else {
+        dropped = true;
+      } else if (!streaming) {
+        // single write of the whole data, no need in buffering
         final FileOutputStream fos = new FileOutputStream(tmpFile);
-        final BufferedOutputStream bos = new BufferedOutputStream(fos, BUFFER_SIZE);
 
-        bos.write(data);
-        bos.flush();
-        bos.close(); // that will close FOS too
+        try {
+          fos.write(data);
+          force(fos, durability);
+        } finally {
+          fos.close();
+        }
       }
     } catch (@NonNull final Throwable ignored) {
       noError = false;
@@ -537,41 +1534,194 @@ public final class PreferencesUnified
       noError = file.renameTo(bakFile);
     }
 
+    // file replaces slots, they give way to the file on load from the moment it is renamed into place
+    if (noError && tmpFile.exists() && Slots.exists(file)) {
+      noError = Slots.supersede(file, DURABILITY_NONE != durability);
+    }
+
     // rename new file to a current filename
     if (noError && tmpFile.exists()) {
       synchronized (storage) {
         noError = tmpFile.renameTo(file);
 
-        // remove our shutdown guard
-        if (null != storage.Shutdown) {
-          Runtime.getRuntime().removeShutdownHook(storage.Shutdown);
-          storage.Shutdown = null;
-        }
+        removeShutdownGuard(storage);
       }
     }
 
+    // dropped data should not be recovered from backup on load
+    if (noError && dropped && bakFile.exists()) {
+      noError = bakFile.delete();
+    }
+
+    // make rename durable
+    if (noError && DURABILITY_FULL == durability) {
+      noError = syncDirectory(dir);
+    }
+
+    // all logged changes are in the file now. Log left after crash is bound to the old file and will be ignored.
+    if (noError) {
+      noError = Journal.delete(logFile);
+    }
+
+    // slots left from A/B layout have priority on load, drop them
+    if (noError && Slots.exists(file)) {
+      noError = Slots.delete(file);
+      storage.Slot = -1;
+    }
+
     // final cleanup
     if (tmpFile.exists()) {
       tmpFile.delete();
     }
-
-    return noError;
+
+    return noError;
+  }
+
+  /**
+   * Save the data into the older slot of A/B layout. Slot is overwritten in place, no temporary files and renames
+   * are needed. Call it inside 'storage.SaveSync' section only.
+   *
+   * @param storage memory storage.
+   * @param dir directory of the preferences.
+   * @param file file of the preferences.
+   * @param serializer instance of the serializer.
+   * @param batch changes to save.
+   * @param durability durability mode.
+   * @return <code>true</code> - save done, otherwise <code>false</code>.
+   */
+  private static boolean saveToSlot(@NonNull final Storage storage, final File dir, @NonNull final File file,
+                                    @NonNull final Serialization serializer, @NonNull final Storage.Batch batch,
+                                    final int durability) {
+    try {
+      // read-only version of data for synchronization
+      final Map<String, Object> toSave = batch.Data.asMap();
+      final byte[] data;
+
+      if (serializer instanceof StreamingSerialization) {
+        // slot header needs the length and checksum of the data, collect it in memory first
+        final SaveBuffers.Output out = SaveBuffers.current().output(BUFFER_SIZE);
+
+        try {
+          ((StreamingSerialization) serializer).serialize(toSave, out);
+          data = out.toByteArray();
+        } finally {
+          out.close();
+        }
+      } else if (serializer instanceof DeltaSerialization) {
+        final Set<String> none = Collections.emptySet();
+
+        data = ((DeltaSerialization) serializer).serialize(toSave, batch.Full ? none : batch.Changed,
+            batch.Full ? none : batch.Removed, batch.Full);
+      } else {
+        data = serializer.serialize(toSave);
+      }
+
+      boolean noError = true;
+
+      if (null == data || 0 == data.length) {
+        // empty data means drop of the file on disk to us
+        noError = Slots.delete(file);
+        storage.Slot = -1;
+      } else {
+        final int index = (0 == storage.Slot) ? 1 : 0;
+        final File slot = Slots.of(file, index);
+        final boolean created = !slot.exists();
+        final long generation = storage.Generation + 1;
+
+        Slots.write(slot, generation, data, DURABILITY_NONE != durability);
+
+        // new slot file, its directory entry should be durable too
+        if (created && DURABILITY_FULL == durability && !syncDirectory(dir)) {
+          return false;
+        }
+
+        storage.Slot = index;
+        storage.Generation = generation;
+      }
+
+      synchronized (storage) {
+        removeShutdownGuard(storage);
+      }
+
+      // plain file and its log are replaced by slots
+      final File bakFile = new File(dir, file.getName() + ".bak");
+
+      noError &= !file.exists() || file.delete();
+      noError &= !bakFile.exists() || bakFile.delete();
+      noError &= Journal.delete(Journal.of(file));
+
+      return noError;
+    } catch (@NonNull final Throwable ignored) {
+      if (!(ignored instanceof RescheduleException)) {
+        Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Force written data of the file to the disk, if durability requires that.
+   *
+   * @param fos file stream, data should be flushed.
+   * @param durability durability mode.
+   * @throws IOException on sync error.
+   */
+  private static void force(@NonNull final FileOutputStream fos, final int durability) throws IOException {
+    if (DURABILITY_NONE != durability) {
+      fos.getFD().sync();
+    }
+  }
+
+  /**
+   * Force directory entries to the disk. Directory descriptors are available on API 21+ only, on older devices
+   * method does nothing.
+   *
+   * @param dir directory to sync.
+   * @return true - success or not supported, otherwise false.
+   */
+  private static boolean syncDirectory(final File dir) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return true;
+    }
+
+    try {
+      DirectorySync.sync(dir);
+      return true;
+    } catch (@NonNull final Throwable ignored) {
+      Log.e(LOG_TAG, Log.getStackTraceString(ignored));
+    }
+
+    return false;
+  }
+
+  /**
+   * Remove shutdown guard of the storage, all changes are on disk. Call it inside 'storage' sync section only.
+   *
+   * @param storage memory storage.
+   */
+  private static void removeShutdownGuard(@NonNull final Storage storage) {
+    if (null != storage.Shutdown) {
+      Runtime.getRuntime().removeShutdownHook(storage.Shutdown);
+      storage.Shutdown = null;
+    }
   }
 
   /**
-   * Based on how full is our processing queue we adjusting background thread priority.
+   * Based on how full is our processing queue and on deadline of the save we adjusting background thread priority.
    *
+   * @param storage storage to save.
    * @return suggested priority for thread.
    */
-  private static int suggestThreadPriority() {
+  private static int suggestThreadPriority(@NonNull final Storage storage) {
     final int size = sQueue.size();
     int priority = Thread.MIN_PRIORITY;
 
     if (size > 4) {
       // we are too slow possible lost of data
       priority = Thread.MAX_PRIORITY;
-    } else if (size > CPU_COUNT) {
-      // we are in normal state, but should hurry
+    } else if (size > CPU_COUNT || System.nanoTime() - storage.SaveDeadline.get() >= 0) {
+      // we are in normal state, but should hurry: somebody waits for the save or it is overdue
       priority = Thread.NORM_PRIORITY;
     } else {
       // we are fine. Leave priority with MIN priority.
@@ -590,6 +1740,11 @@ public final class PreferencesUnified
   @NonNull
   private Serialization mSerializer = NullSerialization.Instance;
 
+  /** Editors recycling mode. */
+  private volatile boolean mRecycleEditors;
+  /** Editor ready for reuse. */
+  private final AtomicReference<EditorImpl> mRecycled = new AtomicReference<>();
+
   /**
    * Get instance of the SharedPreferences actions factory.
    *
@@ -613,6 +1768,139 @@ public final class PreferencesUnified
     }
   }
 
+  /**
+   * Is editors recycling mode enabled.
+   *
+   * @return true - editors are recycled, otherwise false.
+   */
+  public boolean isRecycleEditors() {
+    return mRecycleEditors;
+  }
+
+  /**
+   * Enable/disable editors recycling mode. In recycling mode editor and its actions are reused after {@link
+   * Editor#commit()} or {@link Editor#apply()} call, so steady-state edit/put/apply loop does not produce garbage.
+   * <p/>
+   * <i>Note: in recycling mode editor instance should not be used after commit/apply call, call {@link #edit()} for
+   * each transaction. Commit listeners should not keep references on actions.</i>
+   *
+   * @param recycle true - recycle editors, otherwise false.
+   */
+  public void setRecycleEditors(final boolean recycle) {
+    mRecycleEditors = recycle;
+  }
+
+  /**
+   * Is log-structured save mode enabled.
+   *
+   * @return true - modified keys are appended to the log, otherwise false.
+   */
+  public boolean isLogStructured() {
+    return mStorage.isJournal();
+  }
+
+  /**
+   * Enable/disable log-structured save mode. In this mode background save appends only modified keys to the log file
+   * near the preferences file ({@code <file>.log}) instead of rewriting the whole file. Full save of the data
+   * (compaction) is done when log becomes bigger than the preferences file. Log is applied on top of the file on
+   * loading, torn tail of the log is ignored.
+   * <p/>
+   * <i>Note: mode is shared by all instances of the same file. Values of unknown types and custom actions lead to
+   * full save.</i>
+   *
+   * @param enabled true - append changes to the log, otherwise rewrite whole file on each save.
+   */
+  public void setLogStructured(final boolean enabled) {
+    synchronized (mStorage.ModifySync) {
+      mStorage.setJournal(enabled);
+    }
+  }
+
+  /**
+   * Is double-buffered A/B file layout enabled.
+   *
+   * @return true - data is saved into slot files, otherwise into the plain file.
+   */
+  public boolean isSlotLayout() {
+    return mStorage.SlotLayout;
+  }
+
+  /**
+   * Enable/disable double-buffered A/B file layout. In this layout data is stored in two fixed slot files near the
+   * preferences file ({@code <file>.slot0} and {@code <file>.slot1}), each with generation number and checksum in
+   * header. Save overwrites the older slot in place without temporary files and renames, load picks the newest valid
+   * slot, so torn write falls back to the previous version of the data.
+   * <p/>
+   * <i>Note: mode is shared by all instances of the same file. Files of both layouts are loaded, first save in the
+   * new layout drops files of the old one. Log-structured mode is not used in this layout.</i>
+   *
+   * @param enabled true - save data into slots, otherwise into the plain file.
+   */
+  public void setSlotLayout(final boolean enabled) {
+    synchronized (mStorage.ModifySync) {
+      if (mStorage.SlotLayout != enabled) {
+        mStorage.SlotLayout = enabled;
+
+        // files of the old layout are replaced by the full save of the data
+        mStorage.touchAll();
+      }
+    }
+  }
+
+  /**
+   * Is preferences file critical.
+   *
+   * @return true - saves of the file are urgent, otherwise false.
+   */
+  public boolean isCritical() {
+    return mStorage.Critical;
+  }
+
+  /**
+   * Mark preferences file as critical. Saves of the critical file are scheduled ahead of applies of other files, as
+   * saves of {@link Editor#commit()}. Flag is shared by all instances of the same file. Default: false.
+   *
+   * @param critical true - saves of the file are urgent, otherwise false.
+   */
+  public void setCritical(final boolean critical) {
+    mStorage.Critical = critical;
+  }
+
+  /**
+   * Get durability mode of the preferences file.
+   *
+   * @return one of {@link #DURABILITY_NONE}, {@link #DURABILITY_DATA} or {@link #DURABILITY_FULL}.
+   */
+  public int getDurability() {
+    return mStorage.Durability;
+  }
+
+  /**
+   * Change durability mode of the preferences file. Mode is shared by all instances of the same file. Stronger modes
+   * make each save slower: {@link #DURABILITY_DATA} forces file content before rename (one fsync),
+   * {@link #DURABILITY_FULL} forces directory entry too (two fsyncs). Default mode is {@link #DURABILITY_NONE}.
+   *
+   * @param durability one of {@link #DURABILITY_NONE}, {@link #DURABILITY_DATA} or {@link #DURABILITY_FULL}.
+   */
+  public void setDurability(final int durability) {
+    if (durability < DURABILITY_NONE || durability > DURABILITY_FULL) {
+      throw new IllegalArgumentException("Unknown durability mode: " + durability);
+    }
+
+    mStorage.Durability = durability;
+  }
+
+  /**
+   * Return editor into recycling pool.
+   *
+   * @param editor instance to reuse.
+   */
+  private void recycle(@NonNull final EditorImpl editor) {
+    if (mRecycleEditors) {
+      mRecycled.compareAndSet(null, editor);
+    }
+  }
+
   /**
    * Get instance of the serializer used for storing preferences into file.
    *
@@ -682,7 +1970,9 @@ public final class PreferencesUnified
    */
   private void notifyChangeListeners(@Nullable final List<String> keys) {
     if (null != keys && !keys.isEmpty() && !mListeners.isEmpty()) {
-      for (String key : keys) {
+      for (int i = 0, len = keys.size(); i < len; i++) {
+        final String key = keys.get(i);
+
         if (null != key) {
           notifyChangeListeners(key);
         }
@@ -743,6 +2033,35 @@ public final class PreferencesUnified
     sPool.clear();
   }
 
+  /**
+   * Get global statistics of the preferences.
+   *
+   * @return statistics instance, counters are updated in real time.
+   */
+  @NonNull
+  public static Statistics getStatistics() {
+    return sStats;
+  }
+
+  /**
+   * Get modification version of the data in memory.
+   *
+   * @return current version of the data.
+   */
+  public int getVersion() {
+    return mStorage.Version.get();
+  }
+
+  /**
+   * Get version of the data persisted by the last successful save. Data is on disk when persisted version reaches
+   * the version of the data.
+   *
+   * @return persisted version of the data.
+   */
+  public int getPersistedVersion() {
+    return mStorage.Persisted;
+  }
+
   /** Dump diagnostic information to the logcat. */
   public void dump(final boolean fullDump) {
     Log.d(LOG_TAG, "Current Save Path: " + mFileName.getAbsolutePath());
@@ -754,147 +2073,499 @@ public final class PreferencesUnified
       }
     }
 
-    Log.d(LOG_TAG, "Changed Version: " + mStorage.Version.get());
-    Log.d(LOG_TAG, "Saves DONE: " + sStats.DoneSaves.get());
-    Log.d(LOG_TAG, "Saves RESCHEDULED: " + sStats.RescheduledSaves.get());
-    Log.d(LOG_TAG, "Saves SKIPPED: " + sStats.SkippedSaves.get());
-    Log.d(LOG_TAG, "Saves SCHEDULED: " + sStats.SetSaves.get());
-    Log.d(LOG_TAG, "Data map size: " + mStorage.Objects.size());
-    Log.d(LOG_TAG, "Apply's: " + sStats.Applies.get());
-    Log.d(LOG_TAG, "Commit's: " + sStats.Commits.get());
-    Log.d(LOG_TAG, "Memory Commit's: " + sStats.MemoryCommits.get());
+    Log.d(LOG_TAG, "Changed Version: " + mStorage.Version.get());
+    Log.d(LOG_TAG, "Persisted Version: " + mStorage.Persisted);
+    Log.d(LOG_TAG, "Saves DONE: " + sStats.DoneSaves.get());
+    Log.d(LOG_TAG, "Saves RESCHEDULED: " + sStats.RescheduledSaves.get());
+    Log.d(LOG_TAG, "Saves SKIPPED: " + sStats.SkippedSaves.get());
+    Log.d(LOG_TAG, "Saves SCHEDULED: " + sStats.SetSaves.get());
+    Log.d(LOG_TAG, "Saves RERUN: " + sStats.RerunSaves.get());
+    Log.d(LOG_TAG, "Writes: " + sStats.Writes.get() + ", absorbed edits: " + sStats.AbsorbedEdits.get() +
+        ", max per write: " + sStats.MaxAbsorbedEdits.get());
+    Log.d(LOG_TAG, "Data map size: " + mStorage.Data.size());
+    Log.d(LOG_TAG, "Apply's: " + sStats.Applies.get());
+    Log.d(LOG_TAG, "Commit's: " + sStats.Commits.get());
+    Log.d(LOG_TAG, "Memory Commit's: " + sStats.MemoryCommits.get());
+    Log.d(LOG_TAG, "Loads: " + sStats.Loads.get() + ", bytes: " + sStats.LoadedBytes.get());
+    Log.d(LOG_TAG, "Compression ratio: " + sStats.getCompressionRatio() + ", cpu ms: " +
+        sStats.CompressionTime.get() / 1000000.0 + ", decompression cpu ms: " +
+        sStats.DecompressionTime.get() / 1000000.0);
+
+    if (fullDump) {
+      for (Entry<String, Object> entry : mStorage.snapshot().asMap().entrySet()) {
+        Log.v(LOG_TAG, "--> key: " + entry.getKey() + ", value: " + String.valueOf(entry.getValue()));
+      }
+    }
+
+    Log.d(LOG_TAG, "Thread Pool Max: " + CPU_COUNT);
+    Log.d(LOG_TAG, "Thread Pool Queue Size: " + sQueue.size());
+
+    Log.d(LOG_TAG, "Attached Change Listeners: " + mListeners.size());
+    Log.d(LOG_TAG, "Attached Commits Listeners: " + mCommitListeners.size());
+    Log.d(LOG_TAG, "Attached Factory: " + getFactory().getClass().getName());
+    Log.d(LOG_TAG, "Attached Serializer: " + getSerializer().getClass().getName());
+  }
+
+	/* ========================== [NESTED CLASSES DECLARATIONS] ============================ */
+
+  /** Utility interface. Inherit this interface if Action supports Key identifier. */
+  public interface SupportsKey {
+    /**
+     * Get key name.
+     *
+     * @return key name, otherwise <code>null</code>.
+     */
+    public String getKey();
+  }
+
+  /** Utility interface. Inherit this interface if Action supports Value storage. */
+  public interface SupportsValue {
+    /**
+     * Get value.
+     *
+     * @return stored value.
+     */
+    public Object getValue();
+  }
+
+  /** Modification Action of the shared preferences. */
+  public interface Action {
+    /**
+     * Get Action type integer identifier.
+     *
+     * @return type of action identifier. One from list: {@link Factory#TYPE_PUT}, {@link Factory#TYPE_REMOVE} or {@link
+     * Factory#TYPE_CLEAR}.
+     */
+    public int getType();
+
+    /**
+     * Request update of the provided storage.
+     *
+     * @param storage instance of the storage that requesting update.
+     */
+    void apply(final Editor editor, final Map<String, Object> storage);
+  }
+
+  /** Modification actions factory. Known only three types of actions. */
+  public interface Factory {
+    public static final int TYPE_PUT = 1;
+    public static final int TYPE_REMOVE = 2;
+    public static final int TYPE_CLEAR = 4;
+
+    /**
+     * Get instance of the action.
+     *
+     * @param type type of action, one from constants: {@link Factory#TYPE_CLEAR}, {@link Factory#TYPE_PUT} or {@link
+     * Factory#TYPE_REMOVE}.
+     * @param key key name
+     * @param value new value
+     * @return instance of the class responsible for Memory storage updated.
+     */
+    @NonNull
+    Action action(final int type, final String key, final Object value);
+  }
+
+  /** Serialization interface. Should be used for converting data to byte array which we persist. */
+  public interface Serialization {
+    /**
+     * Serialize provided collection of data to byte array.<br/> Always executed in <b>background thread</b>!
+     * Implementation of the serialization can throw any runtime exception, that is a signal to the Preferences storage
+     * algorithm that required rescheduling of the save operation.
+     *
+     * @param data data to serialize. Always 'not null'.
+     * @return Serialization results. Return <code>null</code> is no file storage is needed (used DB or any other global
+     * storage).
+     */
+    byte[] serialize(final Map<String, ?> data);
+
+    /**
+     * De-serialize data from byte array to collection of values.<br/> Always executed in <b>background thread</b>!
+     *
+     * @param data byte array to de-serialize. Can be <code>null</code>.
+     * @return extracted collection of values.
+     */
+    Map<String, ?> deserialize(final byte[] data);
+  }
+
+  /**
+   * Serialization that de-serializes data directly from the buffer. Big files are memory-mapped in read-only mode and
+   * decoded from the page cache without copying them to the heap, small files are wrapped heap arrays.
+   */
+  public interface BufferSerialization extends Serialization {
+    /**
+     * De-serialize data from buffer to collection of values.<br/> Always executed in <b>background thread</b>!
+     * Buffer is read-only and is valid only during the call, do not keep references on it.
+     *
+     * @param data buffer to de-serialize, data is between position and limit.
+     * @return extracted collection of values.
+     */
+    Map<String, ?> deserialize(@NonNull final ByteBuffer data);
+  }
+
+  /**
+   * Serialization that writes and reads data directly to/from the file streams. Save does not keep serialized copy of
+   * the data in memory, peak memory usage of the save is reduced to the buffer size.
+   */
+  public interface StreamingSerialization extends Serialization {
+    /**
+     * Serialize provided collection of data to the stream.<br/> Always executed in <b>background thread</b>! Nothing
+     * written to the stream means drop of the file.
+     *
+     * @param data data to serialize. Always 'not null'.
+     * @param out buffered stream of the file, should not be closed by serializer.
+     * @throws IOException on write error, save operation will be rescheduled.
+     */
+    void serialize(@NonNull final Map<String, ?> data, @NonNull final OutputStream out) throws IOException;
+
+    /**
+     * De-serialize data from stream to collection of values.<br/> Always executed in <b>background thread</b>!
+     *
+     * @param in buffered stream of the file, should not be closed by serializer.
+     * @return extracted collection of values.
+     * @throws IOException on read error.
+     */
+    Map<String, ?> deserialize(@NonNull final InputStream in) throws IOException;
+  }
+
+  /**
+   * Serialization that receives changes of the data since the last successful save together with the full data.
+   * Backends that are able to update stored data partially (DB, logs, segmented files) can write only changes.
+   * <p/>
+   * <i>Note: failed save (any exception) keeps changes, next attempt receives them merged with newer changes.
+   * {@link StreamingSerialization} has priority if serializer implements both interfaces.</i>
+   */
+  public interface DeltaSerialization extends Serialization {
+    /**
+     * Serialize changes of the data.<br/> Always executed in <b>background thread</b>!
+     *
+     * @param data read-only data to serialize. Always 'not null'.
+     * @param changed keys added or modified since the last successful save.
+     * @param removed keys removed since the last successful save.
+     * @param full true - changes are unknown (first save, custom actions, log compaction), whole data should be
+     * stored. Sets of keys are empty in this case.
+     * @return Serialization results, same as {@link Serialization#serialize(Map)}.
+     */
+    byte[] serialize(@NonNull final Map<String, ?> data, @NonNull final Set<String> changed,
+                     @NonNull final Set<String> removed, final boolean full);
+  }
+
+  /**
+   * Listener interface that allows to capture commits to the memory from class side. <p> <i>Note: Editors without
+   * actions will not raise commits and will be skipped by Editor logic.</i> </p>
+   */
+  public interface CommitListener {
+    /**
+     * On commit operation started. Please keep code in callback as fast as possible. Callback raise inside the LOCK
+     * section.
+     *
+     * @param editor instance that starts commit.
+     * @param actions queue of actions that will be committed.
+     */
+    void onCommitStart(final Editor editor, final Queue<Action> actions);
+
+    /**
+     * On done commit to the memory. Please keep code in callback as fast as possible. Callback raise inside the LOCK
+     * section.
+     *
+     * @param editor instance that finish own commit.
+     */
+    void onCommitEnd(final Editor editor);
+  }
+
+  /** Editor of the unified preferences. Extends standard editor by key handles support and async commit. */
+  public interface UnifiedEditor extends Editor {
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor putString(final String key, final String value);
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor putStringSet(final String key, final Set<String> values);
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor putInt(final String key, final int value);
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor putLong(final String key, final long value);
 
-    if (fullDump) {
-      for (Entry<String, Object> entry : mStorage.Objects.entrySet()) {
-        Log.v(LOG_TAG, "--> key: " + entry.getKey() + ", value: " + String.valueOf(entry.getValue()));
-      }
-    }
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor putFloat(final String key, final float value);
 
-    Log.d(LOG_TAG, "Thread Pool Max: " + CPU_COUNT);
-    Log.d(LOG_TAG, "Thread Pool Queue Size: " + sQueue.size());
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor putBoolean(final String key, final boolean value);
 
-    Log.d(LOG_TAG, "Attached Change Listeners: " + mListeners.size());
-    Log.d(LOG_TAG, "Attached Commits Listeners: " + mCommitListeners.size());
-    Log.d(LOG_TAG, "Attached Factory: " + getFactory().getClass().getName());
-    Log.d(LOG_TAG, "Attached Serializer: " + getSerializer().getClass().getName());
-  }
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor remove(final String key);
 
-	/* ========================== [NESTED CLASSES DECLARATIONS] ============================ */
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    UnifiedEditor clear();
 
-  /** Utility interface. Inherit this interface if Action supports Key identifier. */
-  public interface SupportsKey {
     /**
-     * Get key name.
+     * Set int value by key handle.
      *
-     * @return key name, otherwise <code>null</code>.
+     * @param handle key handle.
+     * @param value new value.
+     * @return this instance.
      */
-    public String getKey();
-  }
+    @NonNull
+    UnifiedEditor putInt(@NonNull final KeyHandle handle, final int value);
 
-  /** Utility interface. Inherit this interface if Action supports Value storage. */
-  public interface SupportsValue {
     /**
-     * Get value.
+     * Set long value by key handle.
      *
-     * @return stored value.
+     * @param handle key handle.
+     * @param value new value.
+     * @return this instance.
      */
-    public Object getValue();
-  }
+    @NonNull
+    UnifiedEditor putLong(@NonNull final KeyHandle handle, final long value);
 
-  /** Modification Action of the shared preferences. */
-  public interface Action {
     /**
-     * Get Action type integer identifier.
+     * Set float value by key handle.
      *
-     * @return type of action identifier. One from list: {@link Factory#TYPE_PUT}, {@link Factory#TYPE_REMOVE} or {@link
-     * Factory#TYPE_CLEAR}.
+     * @param handle key handle.
+     * @param value new value.
+     * @return this instance.
      */
-    public int getType();
+    @NonNull
+    UnifiedEditor putFloat(@NonNull final KeyHandle handle, final float value);
 
     /**
-     * Request update of the provided storage.
+     * Set boolean value by key handle.
      *
-     * @param storage instance of the storage that requesting update.
+     * @param handle key handle.
+     * @param value new value.
+     * @return this instance.
      */
-    void apply(final Editor editor, final Map<String, Object> storage);
-  }
+    @NonNull
+    UnifiedEditor putBoolean(@NonNull final KeyHandle handle, final boolean value);
 
-  /** Modification actions factory. Known only three types of actions. */
-  public interface Factory {
-    public static final int TYPE_PUT = 1;
-    public static final int TYPE_REMOVE = 2;
-    public static final int TYPE_CLEAR = 4;
+    /**
+     * Set string value by key handle.
+     *
+     * @param handle key handle.
+     * @param value new value.
+     * @return this instance.
+     */
+    @NonNull
+    UnifiedEditor putString(@NonNull final KeyHandle handle, final String value);
 
     /**
-     * Get instance of the action.
+     * Commit changes to memory and schedule urgent save to disk, without blocking of the caller. Returned future is
+     * done when committed version of the data reaches the disk or its save fails.
      *
-     * @param type type of action, one from constants: {@link Factory#TYPE_CLEAR}, {@link Factory#TYPE_PUT} or {@link
-     * Factory#TYPE_REMOVE}.
-     * @param key key name
-     * @param value new value
-     * @return instance of the class responsible for Memory storage updated.
+     * @return future of the commit result: <code>true</code> - changes persisted, <code>false</code> - nothing to
+     * commit or save failed (data is saved later in background).
      */
     @NonNull
-    Action action(final int type, final String key, final Object value);
+    Future<Boolean> commitAsync();
   }
 
-  /** Serialization interface. Should be used for converting data to byte array which we persist. */
-  public interface Serialization {
+  /** Sync of the directory entries. Separate class, loaded only on API 21+ devices. */
+  @SuppressLint("NewApi")
+  private static final class DirectorySync {
     /**
-     * Serialize provided collection of data to byte array.<br/> Always executed in <b>background thread</b>!
-     * Implementation of the serialization can throw any runtime exception, that is a signal to the Preferences storage
-     * algorithm that required rescheduling of the save operation.
+     * Force directory entries to the disk.
      *
-     * @param data data to serialize. Always 'not null'.
-     * @return Serialization results. Return <code>null</code> is no file storage is needed (used DB or any other global
-     * storage).
+     * @param dir directory to sync.
+     * @throws ErrnoException on open or sync error.
      */
-    byte[] serialize(final Map<String, ?> data);
+    public static void sync(@NonNull final File dir) throws ErrnoException {
+      final FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+
+      try {
+        Os.fsync(fd);
+      } finally {
+        Os.close(fd);
+      }
+    }
+  }
+
+  /** Future of the commit. Done when committed version of the data is persisted or its save failed. */
+  private static final class PersistedFuture implements Future<Boolean> {
+    /** Result of the commit without changes. */
+    public static final PersistedFuture NOTHING = new PersistedFuture(null, 0);
+
+    /** Preferences of the data, <code>null</code> - nothing to commit. */
+    @Nullable
+    private final PreferencesUnified mParent;
+    /** Committed version of the data. */
+    private final int mVersion;
 
     /**
-     * De-serialize data from byte array to collection of values.<br/> Always executed in <b>background thread</b>!
+     * Create future of the commit.
      *
-     * @param data byte array to de-serialize. Can be <code>null</code>.
-     * @return extracted collection of values.
+     * @param parent preferences of the data.
+     * @param version committed version of the data.
      */
-    Map<String, ?> deserialize(final byte[] data);
+    private PersistedFuture(@Nullable final PreferencesUnified parent, final int version) {
+      mParent = parent;
+      mVersion = version;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      // changes are already in memory, save cannot be canceled
+      return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isDone() {
+      return null == mParent || mParent.mStorage.isSettled(mVersion);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Boolean get() throws InterruptedException {
+      try {
+        return get(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (@NonNull final TimeoutException ignored) {
+        // never happens, wait is not limited
+        return false;
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Boolean get(final long timeout, @NonNull final TimeUnit unit) throws InterruptedException,
+        TimeoutException {
+      return null != mParent && mParent.awaitPersisted(mVersion, unit.toNanos(timeout));
+    }
   }
 
-  /**
-   * Listener interface that allows to capture commits to the memory from class side. <p> <i>Note: Editors without
-   * actions will not raise commits and will be skipped by Editor logic.</i> </p>
-   */
-  public interface CommitListener {
+  /** Loading future of the file storage. Storage instance is available before the loading is done. */
+  private static final class StorageLoader extends FutureTask<Storage> {
+    /** Memory storage filled by loader. */
+    @NonNull
+    private final Storage mStorage;
+    /** Loading statistics, filled when loading is done. */
+    @NonNull
+    private final LoadStatistics mStatistics;
+    /** Callbacks of the finished loading, each is called once. */
+    private final Queue<Runnable> mListeners = new ConcurrentLinkedQueue<>();
+
     /**
-     * On commit operation started. Please keep code in callback as fast as possible. Callback raise inside the LOCK
-     * section.
+     * Create loader.
      *
-     * @param editor instance that starts commit.
-     * @param actions queue of actions that will be committed.
+     * @param file file of the preferences.
+     * @param serializer instance of the serializer.
      */
-    void onCommitStart(final Editor editor, final Queue<Action> actions);
+    private StorageLoader(@NonNull final File file, @NonNull final Serialization serializer) {
+      this(new Storage(), new LoadStatistics(file.getAbsolutePath()), file, serializer);
+    }
 
     /**
-     * On done commit to the memory. Please keep code in callback as fast as possible. Callback raise inside the LOCK
-     * section.
+     * Create loader.
      *
-     * @param editor instance that finish own commit.
+     * @param storage storage to fill.
+     * @param stats statistics to fill.
+     * @param file file of the preferences.
+     * @param serializer instance of the serializer.
      */
-    void onCommitEnd(final Editor editor);
+    private StorageLoader(@NonNull final Storage storage, @NonNull final LoadStatistics stats,
+                          @NonNull final File file, @NonNull final Serialization serializer) {
+      super(new Callable<Storage>() {
+        @Override
+        public Storage call() throws Exception {
+          final long started = System.nanoTime();
+
+          initializeData(storage, file, serializer, stats);
+
+          stats.Duration = System.nanoTime() - started;
+
+          // temp files of interrupted saves are removed in background, loading is not delayed. Save queue accepts
+          // save requests only.
+          sTimer.execute(new Runnable() {
+            @Override
+            public void run() {
+              sweepTempFiles(file, STALE_TEMP_AGE);
+            }
+          });
+
+          sStats.Loads.incrementAndGet();
+          sStats.LoadedBytes.addAndGet(stats.Bytes);
+
+          return storage;
+        }
+      });
+
+      mStorage = storage;
+      mStatistics = stats;
+    }
+
+    /**
+     * Call back when loading is done. Callback is called by the loading thread, or immediately by the calling thread
+     * if loading is already done.
+     *
+     * @param callback callback to call.
+     */
+    private void whenDone(@NonNull final Runnable callback) {
+      mListeners.offer(callback);
+
+      // loading finished before the registration
+      if (isDone()) {
+        notifyListeners();
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void done() {
+      notifyListeners();
+    }
+
+    /** Call registered callbacks. Callback registered during the call is not lost and is not called twice. */
+    private void notifyListeners() {
+      for (Runnable callback; null != (callback = mListeners.poll()); ) {
+        callback.run();
+      }
+    }
   }
 
   /** Implementation of the Shared Preferences Editor with Commit, Apply and Notifications. */
-  private static final class EditorImpl implements SharedPreferences.Editor {
+  private static final class EditorImpl implements UnifiedEditor {
     /** Reference on preferences storage. */
     @Nullable
     private final Storage mStorage;
-    /** Reference on actions factory. It cannot be changed during editor existence. */
-    @Nullable
-    private final Factory mFactory;
     /** Reference on parent instance. */
     private final PreferencesUnified mParent;
     /** Queue of actions done with use of editor. Default preallocation is 16. */
     private final Queue<Action> mActions = new ArrayDeque<Action>();
+    /** Keys of the last commit, buffer reused by each commit. */
+    private final List<String> mNotifications = new ArrayList<String>();
+    /** Pool of typed put actions, used only by recycled editors. */
+    private final List<PutPrimitive> mPrimitives = new ArrayList<PutPrimitive>();
+    /** Reference on actions factory. It cannot be changed during editor existence. */
+    @Nullable
+    private Factory mFactory;
+    /** Typed actions are used instead of the factory actions for primitive values. */
+    private boolean mTypedActions;
+    /** Quantity of the pooled typed actions in use. */
+    private int mPrimitivesInUse;
+    /** Version of the data produced by the last memory commit. */
+    private int mCommitted;
 
     /**
      * Construct the editor.
@@ -904,13 +2575,46 @@ public final class PreferencesUnified
     private EditorImpl(final PreferencesUnified parent) {
       mParent = parent;
       mStorage = mParent.mStorage;
+
+      reset();
+    }
+
+    /**
+     * Prepare editor for usage. Recycled editor is reset before each reuse.
+     *
+     * @return this instance.
+     */
+    @NonNull
+    private EditorImpl reset() {
       mFactory = mParent.getFactory();
+      // custom factory may rely on own actions, do not replace them
+      mTypedActions = (FactoryImpl.Instance == mFactory);
+
+      return this;
+    }
+
+    /**
+     * Get typed put action. Recycled editors reuse own pool of actions, otherwise new instance is created.
+     *
+     * @return instance of the action.
+     */
+    @NonNull
+    private PutPrimitive primitive() {
+      if (!mParent.mRecycleEditors) {
+        return new PutPrimitive();
+      }
+
+      if (mPrimitivesInUse == mPrimitives.size()) {
+        mPrimitives.add(new PutPrimitive());
+      }
+
+      return mPrimitives.get(mPrimitivesInUse++);
     }
 
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor putString(final String key, final String value) {
+    public UnifiedEditor putString(final String key, final String value) {
       mActions.offer(mFactory.action(Factory.TYPE_PUT, key, value));
       return this;
     }
@@ -918,7 +2622,7 @@ public final class PreferencesUnified
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor putStringSet(final String key, final Set<String> values) {
+    public UnifiedEditor putStringSet(final String key, final Set<String> values) {
       mActions.offer(mFactory.action(Factory.TYPE_PUT, key, values));
       return this;
     }
@@ -926,39 +2630,84 @@ public final class PreferencesUnified
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor putInt(final String key, final int value) {
-      mActions.offer(mFactory.action(Factory.TYPE_PUT, key, value));
+    public UnifiedEditor putInt(final String key, final int value) {
+      mActions.offer(mTypedActions ? primitive().setInt(key, value) : mFactory.action(Factory.TYPE_PUT, key, value));
       return this;
     }
 
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor putLong(final String key, final long value) {
-      mActions.offer(mFactory.action(Factory.TYPE_PUT, key, value));
+    public UnifiedEditor putLong(final String key, final long value) {
+      mActions.offer(mTypedActions ? primitive().setLong(key, value) : mFactory.action(Factory.TYPE_PUT, key, value));
       return this;
     }
 
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor putFloat(final String key, final float value) {
-      mActions.offer(mFactory.action(Factory.TYPE_PUT, key, value));
+    public UnifiedEditor putFloat(final String key, final float value) {
+      mActions.offer(mTypedActions ? primitive().setFloat(key, value) : mFactory.action(Factory.TYPE_PUT, key, value));
       return this;
     }
 
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor putBoolean(final String key, final boolean value) {
-      mActions.offer(mFactory.action(Factory.TYPE_PUT, key, value));
+    public UnifiedEditor putBoolean(final String key, final boolean value) {
+      mActions.offer(mTypedActions ? primitive().setBoolean(key, value) :
+          mFactory.action(Factory.TYPE_PUT, key, value));
       return this;
     }
 
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor remove(final String key) {
+    public UnifiedEditor putInt(@NonNull final KeyHandle handle, final int value) {
+      mActions.offer(mTypedActions ? primitive().setInt(handle, value) :
+          mFactory.action(Factory.TYPE_PUT, handle.getKey(), value));
+      return this;
+    }
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public UnifiedEditor putLong(@NonNull final KeyHandle handle, final long value) {
+      mActions.offer(mTypedActions ? primitive().setLong(handle, value) :
+          mFactory.action(Factory.TYPE_PUT, handle.getKey(), value));
+      return this;
+    }
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public UnifiedEditor putFloat(@NonNull final KeyHandle handle, final float value) {
+      mActions.offer(mTypedActions ? primitive().setFloat(handle, value) :
+          mFactory.action(Factory.TYPE_PUT, handle.getKey(), value));
+      return this;
+    }
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public UnifiedEditor putBoolean(@NonNull final KeyHandle handle, final boolean value) {
+      mActions.offer(mTypedActions ? primitive().setBoolean(handle, value) :
+          mFactory.action(Factory.TYPE_PUT, handle.getKey(), value));
+      return this;
+    }
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public UnifiedEditor putString(@NonNull final KeyHandle handle, final String value) {
+      mActions.offer(mFactory.action(Factory.TYPE_PUT, handle.getKey(), value));
+      return this;
+    }
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public UnifiedEditor remove(final String key) {
       mActions.offer(mFactory.action(Factory.TYPE_REMOVE, key, null));
       return this;
     }
@@ -966,7 +2715,7 @@ public final class PreferencesUnified
     /** {@inheritDoc} */
     @NonNull
     @Override
-    public Editor clear() {
+    public UnifiedEditor clear() {
       // optimization: clear actions - reduce number of actions in queue.
       mActions.clear();
 
@@ -982,12 +2731,31 @@ public final class PreferencesUnified
       sStats.Commits.incrementAndGet();
 
       if (commitToMemory()) {
-        changed = mParent.forceCommitToDisk();
+        changed = mParent.forceCommitToDisk(mCommitted);
       }
 
+      mParent.recycle(this);
+
       return changed;
     }
 
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public Future<Boolean> commitAsync() {
+      Future<Boolean> result = PersistedFuture.NOTHING;
+
+      sStats.Commits.incrementAndGet();
+
+      if (commitToMemory()) {
+        result = mParent.commitToDiskAsync(mCommitted);
+      }
+
+      mParent.recycle(this);
+
+      return result;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void apply() {
@@ -997,6 +2765,8 @@ public final class PreferencesUnified
         // do scheduling only if data changes happens
         mParent.scheduleCommitToDisk();
       }
+
+      mParent.recycle(this);
     }
 
     /**
@@ -1011,28 +2781,49 @@ public final class PreferencesUnified
 
       // do cheap check first, than start sync if needed
       if (!mActions.isEmpty()) {
-        final List<String> notifications = new ArrayList<String>(mActions.size());
+        final List<String> notifications = mNotifications;
 
         // notify listeners before we start a transaction
         mParent.notifyCommitListeners(this, mActions);
 
         // DO memory data updates
         synchronized (mStorage.ModifySync) {
-          Action action;
-
-          while (null != (action = mActions.poll())) {
-            action.apply(this, mStorage.Objects);
-
+          if (updateInPlace()) {
             applied++;
-
-            // if key value exists for action
-            if (action instanceof SupportsKey) {
-              notifications.add(((SupportsKey) action).getKey());
+          } else {
+            final TypedStorage data = mStorage.edit();
+            final Map<String, Object> objects = data.asMap();
+            Action action;
+
+            while (null != (action = mActions.poll())) {
+              action.apply(this, objects);
+
+              applied++;
+
+              // if key value exists for action
+              if (action instanceof SupportsKey) {
+                final String key = ((SupportsKey) action).getKey();
+
+                notifications.add(key);
+                mStorage.touch(key);
+              } else if (Factory.TYPE_CLEAR == action.getType()) {
+                mStorage.touchClear();
+              } else {
+                // custom action, modified keys are unknown
+                mStorage.touchAll();
+              }
             }
+
+            // make changes visible for readers, atomic swap of the read-only copy
+            mStorage.publish(data);
           }
 
           // increase version of the data on each update
-          mStorage.Version.addAndGet(applied);
+          mCommitted = mStorage.Version.addAndGet(applied);
+
+          if (applied != 0) {
+            mStorage.Edits++;
+          }
 
           // notify that transaction is done.
           mParent.notifyCommitListeners(this);
@@ -1040,12 +2831,14 @@ public final class PreferencesUnified
 
         // notify listeners about changed keys
         mParent.notifyChangeListeners(notifications);
+        notifications.clear();
+        mPrimitivesInUse = 0;
 
         // register shutdown guard
         if (applied != 0 && null == mStorage.Shutdown) {
           synchronized (mStorage) {
             if (null == mStorage.Shutdown) {
-              Runtime.getRuntime().addShutdownHook(mStorage.Shutdown = new Thread(mParent));
+              Runtime.getRuntime().addShutdownHook(mStorage.Shutdown = new Thread(mParent.mShutdownSave));
             }
           }
         }
@@ -1053,6 +2846,34 @@ public final class PreferencesUnified
 
       return (applied != 0);
     }
+
+    /**
+     * Try to apply single typed action directly on published data, without copying it. Should be called inside
+     * ModifySync section.
+     *
+     * @return true - action applied, otherwise false.
+     */
+    private boolean updateInPlace() {
+      final Action action = mActions.peek();
+
+      if (1 == mActions.size() && action instanceof PutPrimitive) {
+        final PutPrimitive put = (PutPrimitive) action;
+
+        final KeyHandle handle = put.getHandle();
+        final boolean updated = (null == handle) ? mStorage.update(put.getKey(), put.getDataType(), put.getBits()) :
+            mStorage.update(handle, put.getDataType(), put.getBits());
+
+        if (updated) {
+          mActions.poll();
+          mNotifications.add(put.getKey());
+          mStorage.touch(put.getKey());
+
+          return true;
+        }
+      }
+
+      return false;
+    }
   }
 
 }
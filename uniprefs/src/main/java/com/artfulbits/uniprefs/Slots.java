@@ -0,0 +1,313 @@
+package com.artfulbits.uniprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.artfulbits.uniprefs.toolbox.CleanupUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Double-buffered A/B layout of the preferences file. Data is stored in two fixed slot files near the preferences
+ * file ({@code <file>.slot0} and {@code <file>.slot1}). Save overwrites the older slot in place, load picks the newest
+ * valid slot. Save does not rename or create files (except the first saves), torn write damages only the older slot
+ * and the previous version of the data stays available.
+ * <p/>
+ * Format: header {magic, version, generation, payload length, CRC32 of header fields and payload} and the payload
+ * produced by serializer. Full save into the plain file replaces magic of the slots by 'superseded' magic before the
+ * file is renamed into place: superseded slots give way to the existing plain file on load, so the order of the
+ * layouts is kept in the data and not in timestamps of the files.
+ */
+/* package */ final class Slots {
+  /* [ CONSTANTS ] ================================================================================================ */
+
+  /** Extensions of the slot files. */
+  public static final String[] EXTENSIONS = {".slot0", ".slot1"};
+  /** Size of the slot header. */
+  public static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+  /** Magic number of the slot file. */
+  private static final int MAGIC = 0x554e4953;
+  /** Magic number of the slot file replaced by the plain file. */
+  private static final int MAGIC_SUPERSEDED = 0x554e4958;
+  /** Version of the slot format. */
+  private static final int VERSION = 1;
+  /** Offset of the checksum protected header fields: version, generation and length. */
+  private static final int CHECKED_OFFSET = 4;
+  /** Size of the checksum protected header fields. */
+  private static final int CHECKED_SIZE = 4 + 8 + 4;
+
+  /** Hidden constructor. */
+  private Slots() {
+    throw new AssertionError();
+  }
+
+  /* [ STATIC METHODS ] =========================================================================================== */
+
+  /**
+   * Get slot file of the preferences file.
+   *
+   * @param file preferences file.
+   * @param index index of the slot, 0 or 1.
+   * @return slot file.
+   */
+  @NonNull
+  public static File of(@NonNull final File file, final int index) {
+    return new File(file.getPath() + EXTENSIONS[index]);
+  }
+
+  /**
+   * Is any slot file of the preferences exists.
+   *
+   * @param file preferences file.
+   * @return true - preferences are stored in slots, otherwise false.
+   */
+  public static boolean exists(@NonNull final File file) {
+    return of(file, 0).exists() || of(file, 1).exists();
+  }
+
+  /**
+   * Load the newest valid slot of the preferences.
+   *
+   * @param file preferences file.
+   * @return loaded slot, otherwise <code>null</code> if no valid slot found.
+   */
+  @Nullable
+  public static Slot load(@NonNull final File file) {
+    final long[] generations = {-1, -1};
+
+    for (int i = 0; i < EXTENSIONS.length; i++) {
+      generations[i] = readGeneration(of(file, i));
+    }
+
+    // the newest slot first, torn or corrupted slot falls back to the older one
+    final int newest = (generations[1] > generations[0]) ? 1 : 0;
+
+    for (final int index : new int[]{newest, 1 - newest}) {
+      if (generations[index] < 0) {
+        continue;
+      }
+
+      final Slot slot = read(of(file, index), index);
+
+      if (null != slot) {
+        return slot;
+      }
+
+      Log.e(PreferencesUnified.LOG_TAG, "Slot is corrupted, fallback to older data: " + of(file, index));
+    }
+
+    return null;
+  }
+
+  /**
+   * Overwrite slot file with a new generation of the data.
+   *
+   * @param slot slot file.
+   * @param generation generation of the data.
+   * @param data serialized data.
+   * @param sync true - force written data to the disk.
+   * @throws IOException on write errors.
+   */
+  public static void write(@NonNull final File slot, final long generation, @NonNull final byte[] data,
+                           final boolean sync) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(data.length);
+
+    final CRC32 crc = new CRC32();
+    crc.update(header.array(), CHECKED_OFFSET, CHECKED_SIZE);
+    crc.update(data);
+    header.putLong(crc.getValue());
+
+    final RandomAccessFile raf = new RandomAccessFile(slot, "rw");
+
+    try {
+      raf.write(header.array());
+      raf.write(data);
+
+      // previous generation may be bigger, drop its tail
+      raf.setLength(HEADER_SIZE + data.length);
+
+      if (sync) {
+        raf.getFD().sync();
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Mark both slot files as replaced by the plain file. Data of the slots stays valid, it is loaded only if the plain
+   * file does not exist.
+   *
+   * @param file preferences file.
+   * @param sync true - force written marks to the disk.
+   * @return true - existing slots are marked, otherwise false.
+   */
+  public static boolean supersede(@NonNull final File file, final boolean sync) {
+    for (int i = 0; i < EXTENSIONS.length; i++) {
+      final File slot = of(file, i);
+
+      if (!slot.exists()) {
+        continue;
+      }
+
+      RandomAccessFile raf = null;
+
+      try {
+        raf = new RandomAccessFile(slot, "rw");
+        raf.writeInt(MAGIC_SUPERSEDED);
+
+        if (sync) {
+          raf.getFD().sync();
+        }
+      } catch (@NonNull final Throwable ignored) {
+        Log.e(PreferencesUnified.LOG_TAG, Log.getStackTraceString(ignored));
+
+        return false;
+      } finally {
+        CleanupUtils.destroy(raf);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Delete both slot files.
+   *
+   * @param file preferences file.
+   * @return true - slots do not exist anymore, otherwise false.
+   */
+  public static boolean delete(@NonNull final File file) {
+    boolean result = true;
+
+    for (int i = 0; i < EXTENSIONS.length; i++) {
+      final File slot = of(file, i);
+
+      result &= !slot.exists() || slot.delete();
+    }
+
+    return result;
+  }
+
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Read generation from the slot header.
+   *
+   * @param slot slot file.
+   * @return generation, otherwise -1 if slot does not exist or header is not valid.
+   */
+  private static long readGeneration(@NonNull final File slot) {
+    if (slot.length() < HEADER_SIZE) {
+      return -1;
+    }
+
+    RandomAccessFile raf = null;
+
+    try {
+      raf = new RandomAccessFile(slot, "r");
+
+      final byte[] header = new byte[HEADER_SIZE];
+      raf.readFully(header);
+
+      final ByteBuffer buffer = ByteBuffer.wrap(header);
+
+      final int magic = buffer.getInt();
+
+      if ((MAGIC != magic && MAGIC_SUPERSEDED != magic) || VERSION != buffer.getInt()) {
+        return -1;
+      }
+
+      return buffer.getLong();
+    } catch (@NonNull final Throwable ignored) {
+      Log.e(PreferencesUnified.LOG_TAG, Log.getStackTraceString(ignored));
+    } finally {
+      CleanupUtils.destroy(raf);
+    }
+
+    return -1;
+  }
+
+  /**
+   * Read and validate the slot.
+   *
+   * @param file slot file.
+   * @param index index of the slot.
+   * @return loaded slot, otherwise <code>null</code> if slot is torn or corrupted.
+   */
+  @Nullable
+  private static Slot read(@NonNull final File file, final int index) {
+    RandomAccessFile raf = null;
+
+    try {
+      raf = new RandomAccessFile(file, "r");
+
+      final byte[] header = new byte[HEADER_SIZE];
+      raf.readFully(header);
+
+      final ByteBuffer buffer = ByteBuffer.wrap(header);
+      final boolean superseded = (MAGIC_SUPERSEDED == buffer.getInt());
+      buffer.position(CHECKED_OFFSET + 4);
+
+      final long generation = buffer.getLong();
+      final int length = buffer.getInt();
+      final long expected = buffer.getLong();
+
+      if (length < 0 || HEADER_SIZE + (long) length != raf.length()) {
+        return null;
+      }
+
+      final byte[] payload = new byte[length];
+      raf.readFully(payload);
+
+      final CRC32 crc = new CRC32();
+      crc.update(header, CHECKED_OFFSET, CHECKED_SIZE);
+      crc.update(payload);
+
+      return (crc.getValue() == expected) ? new Slot(index, generation, payload, superseded) : null;
+    } catch (@NonNull final Throwable ignored) {
+      Log.e(PreferencesUnified.LOG_TAG, Log.getStackTraceString(ignored));
+    } finally {
+      CleanupUtils.destroy(raf);
+    }
+
+    return null;
+  }
+
+  /* [ NESTED DECLARATIONS ] ====================================================================================== */
+
+  /** Loaded slot. */
+  public static final class Slot {
+    /** Index of the slot. */
+    public final int Index;
+    /** Generation of the data. */
+    public final long Generation;
+    /** Serialized data. */
+    @NonNull
+    public final byte[] Payload;
+    /** Is slot replaced by the plain file. */
+    public final boolean Superseded;
+
+    /**
+     * Create loaded slot.
+     *
+     * @param index index of the slot.
+     * @param generation generation of the data.
+     * @param payload serialized data.
+     * @param superseded is slot replaced by the plain file.
+     */
+    public Slot(final int index, final long generation, @NonNull final byte[] payload, final boolean superseded) {
+      Index = index;
+      Generation = generation;
+      Payload = payload;
+      Superseded = superseded;
+    }
+  }
+}
@@ -1,30 +1,415 @@
 package com.artfulbits.uniprefs;
 
 import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.artfulbits.uniprefs.storages.KeyHandle;
+import com.artfulbits.uniprefs.storages.TypedStorage;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Internal memory storage for shared preferences. <p> <i>Note: instance of object is used for save in background
  * synchronization.</i> </p>
  */
 /* package */ final class Storage {
+  /** Save lane state: no save requested. */
+  public static final int SAVE_IDLE = 0;
+  /** Save lane state: save request is sent to executor. */
+  public static final int SAVE_PENDING = 1;
+  /** Save lane state: save is running. */
+  public static final int SAVE_RUNNING = 2;
+  /** Save lane state: save is running, data changed after its start, one more save is required. */
+  public static final int SAVE_DIRTY = 3;
+
   /**
    * Sync object for data modifications. Used: {@link SharedPreferences.Editor#commit()}, {@link
    * SharedPreferences.Editor#apply()} .
    */
   public final Object ModifySync = new Object();
-  /** Memory storage. Guarded by ModifySync object. */
-  public final Map<String, Object> Objects = new HashMap<>();
+  /**
+   * Memory storage. Published instance is read-only and used by readers without any locking. Modifications are done
+   * on a copy inside ModifySync section and published by {@link #publish(TypedStorage)}.
+   */
+  @NonNull
+  public volatile TypedStorage Data = new TypedStorage().freeze();
   /** Modification version of the objects map. */
   public final AtomicInteger Version = new AtomicInteger();
+  /** Version of the data persisted by the last successful save. Value update guarded by 'this'. */
+  public volatile int Persisted;
+  /** Version of the data of the last failed save. Guarded by 'this'. */
+  public int Failed;
+  /** Durability mode of the file saves, one of PreferencesUnified.DURABILITY_* constants. */
+  public volatile int Durability = PreferencesUnified.DURABILITY_NONE;
+  /** Quantity of memory commits since the last save. Value update guarded by ModifySync. */
+  public volatile int Edits;
+  /** Is coalescing window of the saves open. Guarded by 'this'. */
+  public boolean WindowOpened;
+  /** Start of the coalescing window, nanos. Guarded by 'this'. */
+  public long WindowStart;
+  /** Moment when save of the coalescing window should start, nanos. Guarded by 'this'. */
+  public long WindowDeadline;
   /**
    * Shutdown hook that guaranty us that data changes will be saved before apps will be shutdown. Value update guarded
    * by 'this'.
    */
   @Nullable
   public Thread Shutdown;
+  /** Sync object of the saves to disk. Saves of the same storage are never done in parallel. */
+  public final Object SaveSync = new Object();
+  /**
+   * State of the serial save lane, one of SAVE_* constants. At most one save request of the storage is sent to the
+   * executor or running, request done during the save is executed once after it.
+   */
+  public final AtomicInteger SaveState = new AtomicInteger(SAVE_IDLE);
+  /** Deadline of the requested save, nanos. Saves of the default thread pool are ordered by it. */
+  public final AtomicLong SaveDeadline = new AtomicLong();
+  /** Moment when the pending save request was sent to the executor, nanos. Watchdog of lost requests measures it. */
+  public volatile long SaveSubmitted;
+  /** Is file critical, its saves are urgent as commits. */
+  public volatile boolean Critical;
+  /** Is double-buffered A/B layout of the file enabled. */
+  public volatile boolean SlotLayout;
+  /** Index of the slot with the newest data, -1 if data is not in slots. Guarded by SaveSync. */
+  public int Slot = -1;
+  /** Generation of the newest slot data. Guarded by SaveSync. */
+  public long Generation;
+
+  /** Is log-structured mode enabled. Guarded by ModifySync. */
+  private boolean mJournal;
+  /** Keys modified or removed since the last successful save. Guarded by ModifySync. */
+  @NonNull
+  private final Set<String> mTouched = new HashSet<>();
+  /** Is full save of the data required, modifications are unknown. Guarded by ModifySync. */
+  private boolean mFull = true;
+
+  /**
+   * Get modifiable copy of the current data. Call it inside ModifySync section only.
+   *
+   * @return copy of the data.
+   */
+  @NonNull
+  public TypedStorage edit() {
+    return Data.copy();
+  }
+
+  /**
+   * Publish modified data for lock-free readers. Call it inside ModifySync section only.
+   *
+   * @param data modified copy of the data, instance will be frozen.
+   */
+  public void publish(@NonNull final TypedStorage data) {
+    Data = data.freeze();
+  }
+
+  /**
+   * Update existing primitive value of published data in place, without copying. Call it inside ModifySync section
+   * only.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param type data type of the value.
+   * @param bits raw bits of the value.
+   * @return true - value updated, otherwise false and modification should be done on a copy.
+   */
+  public boolean update(final String key, final int type, final long bits) {
+    final TypedStorage data = Data;
+
+    if (data.updateInPlace(key, type, bits)) {
+      // volatile write, makes update visible for readers
+      Data = data;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Update existing primitive value of published data in place by key handle. Call it inside ModifySync section only.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param type data type of the value.
+   * @param bits raw bits of the value.
+   * @return true - value updated, otherwise false and modification should be done on a copy.
+   */
+  public boolean update(@NonNull final KeyHandle handle, final int type, final long bits) {
+    final TypedStorage data = Data;
+
+    if (data.updateInPlace(handle, type, bits)) {
+      // volatile write, makes update visible for readers
+      Data = data;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Get read-only data for serialization. Published instance is shared in O(1), the next in-place update of the data
+   * does the copy-on-write outside of this call.
+   *
+   * @return read-only instance of the current data.
+   */
+  @NonNull
+  public TypedStorage snapshot() {
+    synchronized (ModifySync) {
+      return Data.share();
+    }
+  }
+
+  /**
+   * Enable or disable log-structured mode of the saves. Call it inside ModifySync section only.
+   *
+   * @param enabled true - append modified keys to the log, otherwise full save of the data.
+   */
+  public void setJournal(final boolean enabled) {
+    mJournal = enabled;
+  }
+
+  /**
+   * Is log-structured mode enabled.
+   *
+   * @return true - modified keys are appended to the log, otherwise false.
+   */
+  public boolean isJournal() {
+    synchronized (ModifySync) {
+      return mJournal;
+    }
+  }
+
+  /**
+   * Track modified key. Call it inside ModifySync section only.
+   *
+   * @param key modified key.
+   */
+  public void touch(@Nullable final String key) {
+    if (!mFull) {
+      if (null == key) {
+        mFull = true;
+      } else {
+        mTouched.add(key);
+      }
+    }
+  }
+
+  /** Track cleanup of the data, all published keys are removed. Call it inside ModifySync section only. */
+  public void touchClear() {
+    if (!mFull) {
+      mTouched.addAll(Data.asMap().keySet());
+    }
+  }
+
+  /** Track unknown modification of the data, that requires full save. Call it inside ModifySync section only. */
+  public void touchAll() {
+    mFull = true;
+  }
+
+  /**
+   * Get changes since the last save and reset tracking. On failed save changes should be returned back by {@link
+   * #restore(Batch)}, tracking is reset only by successful save.
+   *
+   * @return changes with read-only instance of the data, published instance is shared in O(1).
+   */
+  @NonNull
+  public Batch drain() {
+    final Set<String> changed = new HashSet<>();
+    final Set<String> removed = new HashSet<>();
+
+    synchronized (ModifySync) {
+      // no copy under the lock, the next modification of the data is done on a copy
+      final TypedStorage frozen = Data.share();
+
+      if (!mFull) {
+        for (final String key : mTouched) {
+          (frozen.contains(key) ? changed : removed).add(key);
+        }
+      }
+
+      // version is incremented inside ModifySync, so it matches the copy exactly
+      final Batch batch = new Batch(frozen, Version.get(), Edits, changed, removed, mFull);
+
+      mTouched.clear();
+      mFull = false;
+      Edits = 0;
+
+      return batch;
+    }
+  }
+
+  /**
+   * Move deadline of the requested save earlier. Deadlines are compared overflow-safe, deadline never goes later.
+   *
+   * @param deadline deadline of the new request, nanos.
+   * @return true - deadline changed, otherwise false.
+   */
+  public boolean lowerDeadline(final long deadline) {
+    for (long current = SaveDeadline.get(); deadline - current < 0; current = SaveDeadline.get()) {
+      if (SaveDeadline.compareAndSet(current, deadline)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Mark version of the data as persisted and wake up commits that wait for it. Versions are compared overflow-safe,
+   * persisted version never goes back. Call it inside 'this' sync section only.
+   *
+   * @param version persisted version of the data.
+   */
+  public void persisted(final int version) {
+    if (version - Persisted > 0) {
+      Persisted = version;
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Mark save of the data version as failed and wake up commits that wait for it. Failed save is retried in
+   * background, but commits of the failed versions are completed with failure. Call it inside 'this' sync section
+   * only.
+   *
+   * @param version version of the data of the failed save.
+   */
+  public void failed(final int version) {
+    if (version - Failed > 0) {
+      Failed = version;
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Is save of the data version completed: version persisted or its save failed.
+   *
+   * @param version version of the data.
+   * @return true - waiting for the version will not block, otherwise false.
+   */
+  public synchronized boolean isSettled(final int version) {
+    return version - Persisted <= 0 || Failed - version >= 0;
+  }
+
+  /**
+   * Wait until version of the data is persisted.
+   *
+   * @param version version of the data.
+   * @return true - version persisted, otherwise false if save of the version failed.
+   * @throws InterruptedException waiting thread interrupted.
+   */
+  public boolean awaitPersisted(final int version) throws InterruptedException {
+    synchronized (this) {
+      while (version - Persisted > 0) {
+        if (Failed - version >= 0) {
+          return false;
+        }
+
+        wait();
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Wait until version of the data is persisted, but not longer than timeout.
+   *
+   * @param version version of the data.
+   * @param timeout maximum time to wait, nanos.
+   * @return true - version persisted, otherwise false if save of the version failed.
+   * @throws InterruptedException waiting thread interrupted.
+   * @throws TimeoutException version is not persisted in time.
+   */
+  public boolean awaitPersisted(final int version, final long timeout) throws InterruptedException, TimeoutException {
+    final long deadline = System.nanoTime() + timeout;
+
+    synchronized (this) {
+      while (version - Persisted > 0) {
+        if (Failed - version >= 0) {
+          return false;
+        }
+
+        final long remaining = deadline - System.nanoTime();
+
+        if (remaining <= 0) {
+          throw new TimeoutException();
+        }
+
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Return not saved changes back to tracking.
+   *
+   * @param batch changes of the failed save.
+   */
+  public void restore(@NonNull final Batch batch) {
+    synchronized (ModifySync) {
+      if (batch.Full) {
+        mFull = true;
+      }
+
+      mTouched.addAll(batch.Changed);
+      mTouched.addAll(batch.Removed);
+      Edits += batch.Edits;
+    }
+  }
+
+  /** Changes of the data since the last successful save. */
+  public static final class Batch {
+    /** Read-only copy of the data. */
+    @NonNull
+    public final TypedStorage Data;
+    /** Version of the data copy. */
+    public final int Version;
+    /** Quantity of memory commits in batch. */
+    public final int Edits;
+    /** Added or modified keys. */
+    @NonNull
+    public final Set<String> Changed;
+    /** Removed keys. */
+    @NonNull
+    public final Set<String> Removed;
+    /** Is full save of the data required, modifications are unknown and both sets are empty. */
+    public final boolean Full;
+
+    /**
+     * Create batch of changes.
+     *
+     * @param data read-only copy of the data.
+     * @param version version of the data copy.
+     * @param edits quantity of memory commits in batch.
+     * @param changed added or modified keys.
+     * @param removed removed keys.
+     * @param full is full save required.
+     */
+    public Batch(@NonNull final TypedStorage data, final int version, final int edits,
+                 @NonNull final Set<String> changed, @NonNull final Set<String> removed, final boolean full) {
+      Data = data;
+      Version = version;
+      Edits = edits;
+      Changed = changed;
+      Removed = removed;
+      Full = full;
+    }
+
+    /**
+     * Is batch without changes.
+     *
+     * @return true - nothing to save, otherwise false.
+     */
+    public boolean isEmpty() {
+      return !Full && Changed.isEmpty() && Removed.isEmpty();
+    }
+  }
 }
@@ -1,198 +1,358 @@
 package com.artfulbits.uniprefs;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
+import java.util.AbstractQueue;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of the default save thread pool. Save requests are de-duplicated by the {@link Storage#SaveState} lane
+ * before they reach the executor, queue resets the lane of requests removed without execution (drainTo, remove,
+ * clear), so executor shutdown does not block future saves of the storage. Queue itself is lock-free, lock is used
+ * only for parking of the waiting consumers.
+ * <p/>
+ * Requests are ordered by {@link Storage#SaveDeadline}. Urgent requests (commits, critical files) have deadline 'now'
+ * and other requests have deadline 'request time + slack', so each class is FIFO ordered by deadline and queue keeps
+ * two lock-free lanes. Consumer takes the head with the earliest deadline: commits jump ahead of applies, but apply
+ * that waits longer than its slack is not starved. Queued apply that becomes urgent is sent to the executor once more
+ * and lands in the urgent lane, the lane of the storage executes only the first copy taken by consumers.
+ */
+/* package */ final class UniqueQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+  /** Urgent requests and other runnables. */
+  private final ConcurrentLinkedQueue<Runnable> mUrgent = new ConcurrentLinkedQueue<>();
+  /** Save requests of applies, ordered by age. */
+  private final ConcurrentLinkedQueue<Runnable> mNormal = new ConcurrentLinkedQueue<>();
+  /** Lock of the waiting consumers. */
+  private final ReentrantLock mLock = new ReentrantLock();
+  /** Signal of the new item for waiting consumers. */
+  private final Condition mNotEmpty = mLock.newCondition();
+  /** Quantity of the waiting consumers. Producers take the lock only if somebody waits. */
+  private final AtomicInteger mWaiters = new AtomicInteger();
+
+  /* [ Interface Queue ] ========================================================================================== */
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean offer(final Runnable e) {
+    if (null == e) {
+      throw new NullPointerException();
+    }
 
-/** Allows to PUT only unique items into Queue. */
-/* package */ final class UniqueQueue implements BlockingQueue<Runnable> {
-  /** Internal storage. */
-  private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<>();
-  /**  */
-  private final HashMap<Storage, PreferencesUnified> mLookup = new HashMap<>();
+    (isUrgent(e, System.nanoTime()) ? mUrgent : mNormal).offer(e);
 
-  @NonNull
-  @Override
-  public Runnable remove() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+    // volatile read after the volatile write of offer, waiter registered before its re-check is never missed
+    if (mWaiters.get() > 0) {
+      signalNotEmpty();
+    }
+
+    return true;
   }
 
-  @NonNull
+  /** {@inheritDoc} */
   @Override
   public Runnable poll() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
-  }
+    for (; ; ) {
+      final ConcurrentLinkedQueue<Runnable> queue = earliest();
 
-  @NonNull
-  @Override
-  public Runnable element() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+      if (null == queue) {
+        return null;
+      }
+
+      // head may be taken by other consumer, then choose again
+      final Runnable run = queue.poll();
+
+      if (null != run) {
+        return run;
+      }
+    }
   }
 
-  @NonNull
+  /** {@inheritDoc} */
   @Override
   public Runnable peek() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+    final ConcurrentLinkedQueue<Runnable> queue = earliest();
+
+    return (null == queue) ? null : queue.peek();
   }
 
+  /** {@inheritDoc} */
   @Override
-  public boolean addAll(Collection<? extends Runnable> collection) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public int size() {
+    return mUrgent.size() + mNormal.size();
   }
 
+  /** {@inheritDoc} */
   @Override
-  public void clear() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public boolean isEmpty() {
+    return mUrgent.isEmpty() && mNormal.isEmpty();
   }
 
+  /** {@inheritDoc} */
   @Override
-  public boolean containsAll(@NonNull Collection<?> collection) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public boolean contains(final Object o) {
+    return mUrgent.contains(o) || mNormal.contains(o);
   }
 
+  /** {@inheritDoc} */
   @Override
-  public boolean isEmpty() {
-    return mQueue.isEmpty();
+  public boolean remove(final Object o) {
+    if (mUrgent.remove(o) || mNormal.remove(o)) {
+      discarded((Runnable) o);
+      return true;
+    }
+
+    return false;
   }
 
+  /** {@inheritDoc} */
   @NonNull
   @Override
   public Iterator<Runnable> iterator() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+    final Iterator<Runnable> urgent = mUrgent.iterator();
+    final Iterator<Runnable> normal = mNormal.iterator();
+
+    return new Iterator<Runnable>() {
+      /** Iterator of the last returned item. */
+      private Iterator<Runnable> mLastIt;
+      /** The last returned item. */
+      private Runnable mLast;
+
+      @Override
+      public boolean hasNext() {
+        return urgent.hasNext() || normal.hasNext();
+      }
+
+      @Override
+      public Runnable next() {
+        mLastIt = urgent.hasNext() ? urgent : normal;
+
+        return mLast = mLastIt.next();
+      }
+
+      @Override
+      public void remove() {
+        if (null == mLastIt) {
+          throw new IllegalStateException();
+        }
+
+        mLastIt.remove();
+        discarded(mLast);
+        mLastIt = null;
+        mLast = null;
+      }
+    };
   }
 
+  /** {@inheritDoc} */
+  @NonNull
   @Override
-  public boolean removeAll(@NonNull Collection<?> collection) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public Object[] toArray() {
+    return snapshot().toArray();
   }
 
+  /** {@inheritDoc} */
+  @NonNull
   @Override
-  public boolean retainAll(@NonNull Collection<?> collection) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public <T> T[] toArray(@NonNull final T[] array) {
+    return snapshot().toArray(array);
   }
 
+  /* [ Interface BlockingQueue ] ================================================================================== */
+
+  /** {@inheritDoc} */
   @Override
-  public int size() {
-    return mQueue.size();
+  public void put(final Runnable e) {
+    offer(e);
   }
 
-  @NonNull
+  /** {@inheritDoc} */
   @Override
-  public Object[] toArray() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public boolean offer(final Runnable e, final long timeout, @NonNull final TimeUnit unit) {
+    return offer(e);
   }
 
+  /** {@inheritDoc} */
   @NonNull
   @Override
-  public <T> T[] toArray(@NonNull T[] array) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
-  }
+  public Runnable take() throws InterruptedException {
+    Runnable run = poll();
 
-  @Override
-  public boolean add(Runnable e) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+    if (null != run) {
+      return run;
+    }
+
+    mLock.lockInterruptibly();
+    mWaiters.incrementAndGet();
+
+    try {
+      while (null == (run = poll())) {
+        mNotEmpty.await();
+      }
+
+      return run;
+    } finally {
+      mWaiters.decrementAndGet();
+      mLock.unlock();
+    }
   }
 
+  /** {@inheritDoc} */
   @Override
-  public boolean offer(final Runnable e) {
-    final PreferencesUnified pu = (PreferencesUnified) e;
+  public Runnable poll(final long timeout, @NonNull final TimeUnit unit) throws InterruptedException {
+    Runnable run = poll();
 
-    // TODO: offer only if we have unique save request
-    synchronized (mLookup) {
-      if (!mLookup.containsKey(pu.mStorage)) {
-        PreferencesUnified.sStats.SetSaves.incrementAndGet();
+    if (null != run) {
+      return run;
+    }
+
+    long nanos = unit.toNanos(timeout);
+
+    mLock.lockInterruptibly();
+    mWaiters.incrementAndGet();
 
-        mLookup.put(pu.mStorage, pu);
-        return mQueue.offer(e);
+    try {
+      while (null == (run = poll())) {
+        if (nanos <= 0) {
+          return null;
+        }
+
+        nanos = mNotEmpty.awaitNanos(nanos);
       }
 
-      PreferencesUnified.sStats.SkippedSaves.incrementAndGet();
+      return run;
+    } finally {
+      mWaiters.decrementAndGet();
+      mLock.unlock();
     }
-
-    return true;
   }
 
+  /** {@inheritDoc} */
   @Override
-  public void put(Runnable e) throws InterruptedException {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
   }
 
+  /** {@inheritDoc} */
   @Override
-  public boolean offer(Runnable e, long timeout, @NonNull TimeUnit unit) throws InterruptedException {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public int drainTo(@NonNull final Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
   }
 
-  @NonNull
+  /** {@inheritDoc} */
   @Override
-  public Runnable take() throws InterruptedException {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  public int drainTo(@NonNull final Collection<? super Runnable> c, final int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException();
+    }
+
+    int drained = 0;
+
+    for (Runnable run; drained < maxElements && null != (run = poll()); drained++) {
+      c.add(discarded(run));
+    }
+
+    return drained;
   }
 
+  /** {@inheritDoc} */
   @Override
-  public Runnable poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
-    final Runnable run = mQueue.poll(timeout, unit);
-    final PreferencesUnified pu = (PreferencesUnified) run;
+  public void clear() {
+    for (Runnable run; null != (run = poll()); ) {
+      discarded(run);
+    }
+  }
 
-    // NOTE: big question why is that really possible??? we never clean that variable. GC what are you doing?
-    if (null != mLookup && null != pu && null != pu.mStorage) {
-      // remove from lookup map save request
-      synchronized (mLookup) {
-        mLookup.remove(pu.mStorage);
-      }
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Choose the lane with the earliest deadline of the head request.
+   *
+   * @return lane to poll, otherwise <code>null</code> if queue is empty.
+   */
+  @Nullable
+  private ConcurrentLinkedQueue<Runnable> earliest() {
+    final Runnable urgent = mUrgent.peek();
+    final Runnable normal = mNormal.peek();
+
+    if (null == normal) {
+      return (null == urgent) ? null : mUrgent;
     }
 
-    return run;
+    if (null == urgent) {
+      return mNormal;
+    }
+
+    // apply that waits longer than its slack goes first
+    return (urgent instanceof PreferencesUnified && deadlineOf(normal) - deadlineOf(urgent) < 0) ? mNormal : mUrgent;
   }
 
-  @Override
-  public int remainingCapacity() {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  /**
+   * Is request urgent: commit, critical file or not a save request.
+   *
+   * @param run request to check.
+   * @param now current time, nanos.
+   * @return true - request goes to the urgent lane, otherwise false.
+   */
+  private static boolean isUrgent(@NonNull final Runnable run, final long now) {
+    return !(run instanceof PreferencesUnified) || deadlineOf(run) - now <= 0;
   }
 
-  @Override
-  public boolean remove(Object o) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  /**
+   * Get deadline of the save request.
+   *
+   * @param run save request.
+   * @return deadline, nanos.
+   */
+  private static long deadlineOf(@NonNull final Runnable run) {
+    return ((PreferencesUnified) run).mStorage.SaveDeadline.get();
   }
 
-  @Override
-  public boolean contains(Object o) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  /**
+   * Get copy of the queued items, urgent lane first.
+   *
+   * @return list of the items.
+   */
+  @NonNull
+  private List<Runnable> snapshot() {
+    final List<Runnable> items = new ArrayList<>(mUrgent);
+    items.addAll(mNormal);
+
+    return items;
   }
 
-  @Override
-  public int drainTo(Collection<? super Runnable> c) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  /**
+   * Reset save lane of the item removed without execution. New save request of the storage is accepted from this
+   * moment. Executed save request moves the lane by itself.
+   *
+   * @param run removed item.
+   * @return the same item.
+   */
+  private static Runnable discarded(final Runnable run) {
+    if (run instanceof PreferencesUnified) {
+      ((PreferencesUnified) run).mStorage.SaveState.compareAndSet(Storage.SAVE_PENDING, Storage.SAVE_IDLE);
+    }
+
+    return run;
   }
 
-  @Override
-  public int drainTo(Collection<? super Runnable> c, int maxElements) {
-    Log.e(PreferencesUnified.LOG_TAG, "unexpected call.");
-    throw new UnsupportedOperationException();
+  /** Wake up one waiting consumer. */
+  private void signalNotEmpty() {
+    mLock.lock();
+
+    try {
+      mNotEmpty.signal();
+    } finally {
+      mLock.unlock();
+    }
   }
 }
@@ -0,0 +1,253 @@
+package com.artfulbits.uniprefs.actions;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.artfulbits.uniprefs.PreferencesUnified;
+import com.artfulbits.uniprefs.storages.KeyHandle;
+import com.artfulbits.uniprefs.storages.TypedStorage;
+import com.artfulbits.uniprefs.toolbox.Types;
+
+import java.util.Map;
+
+/**
+ * Put primitive value into storage. Value is kept without boxing, instance can be reused for another value after
+ * commit of the editor.
+ */
+public class PutPrimitive
+    implements PreferencesUnified.Action, PreferencesUnified.SupportsKey, PreferencesUnified.SupportsValue {
+  /** Key name. */
+  private String mKey;
+  /** Key handle, if provided. */
+  private KeyHandle mHandle;
+  /**
+   * Data type of the value, one from {@link Types#INT}, {@link Types#LONG}, {@link Types#FLOAT}, {@link Types#BOOL}.
+   */
+  private int mType;
+  /** Raw bits of the value. */
+  private long mBits;
+
+  /**
+   * Set int value.
+   *
+   * @param key key name.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setInt(final String key, final int value) {
+    return set(key, null, Types.INT, value);
+  }
+
+  /**
+   * Set long value.
+   *
+   * @param key key name.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setLong(final String key, final long value) {
+    return set(key, null, Types.LONG, value);
+  }
+
+  /**
+   * Set float value.
+   *
+   * @param key key name.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setFloat(final String key, final float value) {
+    return set(key, null, Types.FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  /**
+   * Set boolean value.
+   *
+   * @param key key name.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setBoolean(final String key, final boolean value) {
+    return set(key, null, Types.BOOL, value ? 1 : 0);
+  }
+
+  /**
+   * Set int value by key handle.
+   *
+   * @param handle key handle.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setInt(@NonNull final KeyHandle handle, final int value) {
+    return set(handle.getKey(), handle, Types.INT, value);
+  }
+
+  /**
+   * Set long value by key handle.
+   *
+   * @param handle key handle.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setLong(@NonNull final KeyHandle handle, final long value) {
+    return set(handle.getKey(), handle, Types.LONG, value);
+  }
+
+  /**
+   * Set float value by key handle.
+   *
+   * @param handle key handle.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setFloat(@NonNull final KeyHandle handle, final float value) {
+    return set(handle.getKey(), handle, Types.FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  /**
+   * Set boolean value by key handle.
+   *
+   * @param handle key handle.
+   * @param value new value.
+   * @return this instance.
+   */
+  @NonNull
+  public PutPrimitive setBoolean(@NonNull final KeyHandle handle, final boolean value) {
+    return set(handle.getKey(), handle, Types.BOOL, value ? 1 : 0);
+  }
+
+  /**
+   * Set key and value.
+   *
+   * @param key key name.
+   * @param handle key handle, optional.
+   * @param type data type of the value.
+   * @param bits raw bits of the value.
+   * @return this instance.
+   */
+  @NonNull
+  private PutPrimitive set(final String key, @Nullable final KeyHandle handle, final int type, final long bits) {
+    mKey = key;
+    mHandle = handle;
+    mType = type;
+    mBits = bits;
+
+    return this;
+  }
+
+  /**
+   * Get key handle.
+   *
+   * @return key handle if value was set by handle, otherwise <code>null</code>.
+   */
+  @Nullable
+  public KeyHandle getHandle() {
+    return mHandle;
+  }
+
+  /**
+   * Get data type of the value.
+   *
+   * @return one from {@link Types#INT}, {@link Types#LONG}, {@link Types#FLOAT}, {@link Types#BOOL}.
+   */
+  public int getDataType() {
+    return mType;
+  }
+
+  /**
+   * Get raw bits of the value. int, float and boolean values are stored in lower 32 bits.
+   *
+   * @return raw bits.
+   */
+  public long getBits() {
+    return mBits;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final int getType() {
+    return PreferencesUnified.Factory.TYPE_PUT;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getKey() {
+    return mKey;
+  }
+
+  /** {@inheritDoc} Value is boxed on each call. */
+  @Override
+  public final Object getValue() {
+    switch (mType) {
+      case Types.INT:
+        return (int) mBits;
+      case Types.FLOAT:
+        return Float.intBitsToFloat((int) mBits);
+      case Types.BOOL:
+        return 0 != mBits;
+      default:
+        return mBits;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void apply(final SharedPreferences.Editor editor, @NonNull final Map<String, Object> storage) {
+    final TypedStorage typed = TypedStorage.unwrap(storage);
+
+    if (null == typed) {
+      storage.put(mKey, getValue());
+      return;
+    }
+
+    if (null != mHandle) {
+      applyByHandle(typed);
+      return;
+    }
+
+    switch (mType) {
+      case Types.INT:
+        typed.putInt(mKey, (int) mBits);
+        break;
+      case Types.FLOAT:
+        typed.putFloat(mKey, Float.intBitsToFloat((int) mBits));
+        break;
+      case Types.BOOL:
+        typed.putBoolean(mKey, 0 != mBits);
+        break;
+      default:
+        typed.putLong(mKey, mBits);
+        break;
+    }
+  }
+
+  /**
+   * Apply value on typed storage by key handle.
+   *
+   * @param typed instance of the storage.
+   */
+  private void applyByHandle(@NonNull final TypedStorage typed) {
+    switch (mType) {
+      case Types.INT:
+        typed.putInt(mHandle, (int) mBits);
+        break;
+      case Types.FLOAT:
+        typed.putFloat(mHandle, Float.intBitsToFloat((int) mBits));
+        break;
+      case Types.BOOL:
+        typed.putBoolean(mHandle, 0 != mBits);
+        break;
+      default:
+        typed.putLong(mHandle, mBits);
+        break;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.artfulbits.uniprefs.storages;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Precomputed key of the preferences. Handle keeps hash of the key and the last resolved slot in {@link TypedStorage},
+ * so hot-key lookups skip hashing and probing. Cached slot is always verified before usage and re-bound lazily after
+ * clear, compaction or reload of the storage.
+ * <p/>
+ * Instance is thread safe and can be shared between preferences instances: invalid cached slot only costs one extra
+ * lookup.
+ */
+public final class KeyHandle {
+  /* [ MEMBERS ] ================================================================================================== */
+
+  /** Key name. */
+  @NonNull
+  private final String mKey;
+  /** Precomputed hash of the key. */
+  /* package */ final int Hash;
+  /** Last known slot of the key, -1 if not resolved yet. Racy writes are fine, slot is verified on each usage. */
+  /* package */ int Slot = -1;
+
+  /* [ CONSTRUCTORS ] ============================================================================================= */
+
+  /**
+   * Create handle of the key.
+   *
+   * @param key key name.
+   */
+  public KeyHandle(@NonNull final String key) {
+    mKey = key;
+    Hash = TypedStorage.hash(key);
+  }
+
+  /* [ GETTERS ] ================================================================================================== */
+
+  /**
+   * Get key name.
+   *
+   * @return key name.
+   */
+  @NonNull
+  public String getKey() {
+    return mKey;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return mKey;
+  }
+}
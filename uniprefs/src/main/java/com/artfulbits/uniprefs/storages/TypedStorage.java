@@ -0,0 +1,1115 @@
+package com.artfulbits.uniprefs.storages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.artfulbits.uniprefs.toolbox.Types;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Typed memory storage of the preferences. Primitive values (int, long, float, boolean) are kept in array of longs,
+ * strings and sets of strings - in array of objects. Both arrays are indexed by key slot, slot is resolved via open
+ * addressing hash table. No boxing on typed put/get calls.
+ * <p/>
+ * Class is not thread safe. Instance is modified only before {@link #freeze()} call, after that it is read-only and
+ * can be shared between threads. Modifications are done on {@link #copy()} of the frozen instance. Single exception is
+ * {@link #updateInPlace(String, int, long)}, that is allowed until instance is not given out by {@link #share()}.
+ */
+public final class TypedStorage {
+  /* [ CONSTANTS ] ================================================================================================ */
+
+  /** Type of the values not supported by {@link Types} class. Kept in array of objects. */
+  private static final byte OBJECT = 1;
+  /** Slot is not in use. */
+  private static final byte FREE = 0;
+  /** Index bucket is empty. */
+  private static final int EMPTY = 0;
+  /** Index bucket is removed. Search should continue. */
+  private static final int DELETED = -1;
+  /** Minimal quantity of slots. */
+  private static final int MIN_CAPACITY = 8;
+  /** In-place updates are allowed. */
+  private static final int EXCLUSIVE = 0;
+  /** In-place update is in progress. */
+  private static final int WRITING = 1;
+  /** Instance is shared, in-place updates are not allowed anymore. */
+  private static final int SHARED = 2;
+  /** Atomic access to the {@link #mState} field. */
+  private static final AtomicIntegerFieldUpdater<TypedStorage> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(TypedStorage.class, "mState");
+
+  /* [ MEMBERS ] ================================================================================================== */
+
+  /** Slot to key. */
+  private String[] mKeys;
+  /** Slot to key hash. */
+  private int[] mHashes;
+  /** Slot to value data type, one from {@link Types} constants or {@link #OBJECT}. */
+  private byte[] mTypes;
+  /** Slot to primitive value. int, float and boolean values are stored as raw bits. */
+  private long[] mPrimitives;
+  /** Slot to string, set of strings or any other object. */
+  private Object[] mObjects;
+  /** Hash index, bucket to slot + 1. Capacity is always power of two. */
+  private int[] mIndex;
+  /** Quantity of used slots, including removed. */
+  private int mSlots;
+  /** Quantity of stored values. */
+  private int mSize;
+  /** Storage is read-only. */
+  private boolean mFrozen;
+  /** In-place updates state: {@link #EXCLUSIVE}, {@link #WRITING} or {@link #SHARED}. */
+  private volatile int mState;
+  /** Cached instance of the map view. */
+  private MapView mView;
+
+  /* [ CONSTRUCTORS ] ============================================================================================= */
+
+  /** Create empty storage. */
+  public TypedStorage() {
+    allocate(MIN_CAPACITY);
+  }
+
+  /**
+   * Create a modifiable copy of the storage.
+   *
+   * @return new instance of the storage with the same content.
+   */
+  @NonNull
+  public TypedStorage copy() {
+    return new TypedStorage(this);
+  }
+
+  /**
+   * Copy constructor.
+   *
+   * @param source instance to copy.
+   */
+  private TypedStorage(@NonNull final TypedStorage source) {
+    final int capacity = source.mKeys.length;
+
+    mKeys = Arrays.copyOf(source.mKeys, capacity);
+    mHashes = Arrays.copyOf(source.mHashes, capacity);
+    mTypes = Arrays.copyOf(source.mTypes, capacity);
+    mPrimitives = Arrays.copyOf(source.mPrimitives, capacity);
+    mObjects = Arrays.copyOf(source.mObjects, capacity);
+    mIndex = Arrays.copyOf(source.mIndex, source.mIndex.length);
+    mSlots = source.mSlots;
+    mSize = source.mSize;
+  }
+
+  /* [ STATE ] ==================================================================================================== */
+
+  /**
+   * Make storage read-only. After that call instance can be safely shared between threads.
+   *
+   * @return this instance.
+   */
+  @NonNull
+  public TypedStorage freeze() {
+    mFrozen = true;
+
+    return this;
+  }
+
+  /**
+   * Is storage read-only.
+   *
+   * @return true - modifications are not allowed, otherwise false.
+   */
+  public boolean isFrozen() {
+    return mFrozen;
+  }
+
+  /**
+   * Mark storage as shared. After that call no in-place updates are possible, instance content is fixed forever.
+   *
+   * @return this instance.
+   */
+  @NonNull
+  public TypedStorage share() {
+    int state;
+
+    while (SHARED != (state = mState)) {
+      if (EXCLUSIVE == state && STATE.compareAndSet(this, EXCLUSIVE, SHARED)) {
+        break;
+      }
+
+      // in-place update is in progress, it takes nanoseconds
+      Thread.yield();
+    }
+
+    return this;
+  }
+
+  /**
+   * Is storage shared.
+   *
+   * @return true - content is fixed forever, otherwise false.
+   */
+  public boolean isShared() {
+    return SHARED == mState;
+  }
+
+  /**
+   * Update existing primitive value without copying the storage. Allowed only for storage that is not shared. Update
+   * is atomic for lock-free readers of the key: int, float and boolean values are stored in lower 32 bits of the slot
+   * and those bits are written atomically. Long values are not updated in place, 64-bit writes are not atomic on
+   * 32-bit VMs.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param type data type of the value, one from {@link Types#INT}, {@link Types#FLOAT}, {@link Types#BOOL}.
+   * @param bits raw bits of the value.
+   * @return true - value updated, otherwise false and copy of the storage should be modified instead.
+   */
+  public boolean updateInPlace(@Nullable final String key, final int type, final long bits) {
+    return updateInPlace(key, null, type, bits);
+  }
+
+  /**
+   * Update existing primitive value by key handle without copying the storage.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param type data type of the value, one from {@link Types#INT}, {@link Types#FLOAT}, {@link Types#BOOL}.
+   * @param bits raw bits of the value.
+   * @return true - value updated, otherwise false and copy of the storage should be modified instead.
+   * @see #updateInPlace(String, int, long)
+   */
+  public boolean updateInPlace(@NonNull final KeyHandle handle, final int type, final long bits) {
+    return updateInPlace(handle.getKey(), handle, type, bits);
+  }
+
+  /**
+   * Get storage of the map view.
+   *
+   * @param map instance of the map.
+   * @return storage if map is a view created by {@link #asMap()}, otherwise <code>null</code>.
+   */
+  @Nullable
+  public static TypedStorage unwrap(@Nullable final Map<String, ?> map) {
+    return (map instanceof MapView) ? ((MapView) map).owner() : null;
+  }
+
+  /**
+   * Get quantity of stored values.
+   *
+   * @return quantity of values.
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Get map view of the storage. View reflects all storage changes, view modifications are allowed only if storage
+   * is not frozen. Primitive values are boxed on each view read.
+   *
+   * @return instance of the view.
+   */
+  @NonNull
+  public Map<String, Object> asMap() {
+    if (null == mView) {
+      mView = new MapView();
+    }
+
+    return mView;
+  }
+
+  /* [ GETTERS ] ================================================================================================== */
+
+  /**
+   * Check is storage contains value for specified key.
+   *
+   * @param key the key to check
+   * @return true - value exists, otherwise false.
+   */
+  public boolean contains(@Nullable final String key) {
+    return find(key, hash(key)) >= 0;
+  }
+
+  /**
+   * Check is storage contains value for specified key handle.
+   *
+   * @param handle the key to check
+   * @return true - value exists, otherwise false.
+   */
+  public boolean contains(@NonNull final KeyHandle handle) {
+    return resolve(handle) >= 0;
+  }
+
+  /**
+   * Get value as an object. Primitives are boxed.
+   *
+   * @param key the key, identifier of value in storage.
+   * @return found value, otherwise <code>null</code>.
+   */
+  @Nullable
+  public Object get(@Nullable final String key) {
+    final int slot = find(key, hash(key));
+
+    return (slot < 0) ? null : valueAt(slot);
+  }
+
+  /**
+   * Get value as string. Values of other types are converted to string.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public String getString(@Nullable final String key, final String defValue) {
+    return stringAt(find(key, hash(key)), defValue);
+  }
+
+  /**
+   * Get value as string by key handle. Values of other types are converted to string.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  public String getString(@NonNull final KeyHandle handle, final String defValue) {
+    return stringAt(resolve(handle), defValue);
+  }
+
+  /**
+   * Get set of strings.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param defValues value to return if key is not found or stored value is not a set.
+   * @return found value, otherwise default value.
+   */
+  public Set<String> getStringSet(@Nullable final String key, final Set<String> defValues) {
+    return stringSetAt(find(key, hash(key)), defValues);
+  }
+
+  /**
+   * Get set of strings by key handle.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param defValues value to return if key is not found or stored value is not a set.
+   * @return found value, otherwise default value.
+   */
+  public Set<String> getStringSet(@NonNull final KeyHandle handle, final Set<String> defValues) {
+    return stringSetAt(resolve(handle), defValues);
+  }
+
+  /**
+   * Get int. Any numeric value is converted to int.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  public int getInt(@Nullable final String key, final int defValue) {
+    return intAt(find(key, hash(key)), defValue);
+  }
+
+  /**
+   * Get int by key handle. Any numeric value is converted to int.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  public int getInt(@NonNull final KeyHandle handle, final int defValue) {
+    return intAt(resolve(handle), defValue);
+  }
+
+  /**
+   * Get long. Any numeric value is converted to long.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  public long getLong(@Nullable final String key, final long defValue) {
+    return longAt(find(key, hash(key)), defValue);
+  }
+
+  /**
+   * Get long by key handle. Any numeric value is converted to long.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  public long getLong(@NonNull final KeyHandle handle, final long defValue) {
+    return longAt(resolve(handle), defValue);
+  }
+
+  /**
+   * Get float. Any numeric value is converted to float.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  public float getFloat(@Nullable final String key, final float defValue) {
+    return floatAt(find(key, hash(key)), defValue);
+  }
+
+  /**
+   * Get float by key handle. Any numeric value is converted to float.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  public float getFloat(@NonNull final KeyHandle handle, final float defValue) {
+    return floatAt(resolve(handle), defValue);
+  }
+
+  /**
+   * Get boolean.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a boolean.
+   * @return found value, otherwise default value.
+   */
+  public boolean getBoolean(@Nullable final String key, final boolean defValue) {
+    return booleanAt(find(key, hash(key)), defValue);
+  }
+
+  /**
+   * Get boolean by key handle.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param defValue value to return if key is not found or stored value is not a boolean.
+   * @return found value, otherwise default value.
+   */
+  public boolean getBoolean(@NonNull final KeyHandle handle, final boolean defValue) {
+    return booleanAt(resolve(handle), defValue);
+  }
+
+  /* [ SETTERS ] ================================================================================================== */
+
+  /**
+   * Set int.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putInt(@Nullable final String key, final int value) {
+    putPrimitive(key, Types.INT, value);
+  }
+
+  /**
+   * Set long.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putLong(@Nullable final String key, final long value) {
+    putPrimitive(key, Types.LONG, value);
+  }
+
+  /**
+   * Set float.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putFloat(@Nullable final String key, final float value) {
+    putPrimitive(key, Types.FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  /**
+   * Set boolean.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putBoolean(@Nullable final String key, final boolean value) {
+    putPrimitive(key, Types.BOOL, value ? 1 : 0);
+  }
+
+  /**
+   * Set int by key handle.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putInt(@NonNull final KeyHandle handle, final int value) {
+    putPrimitive(handle, Types.INT, value);
+  }
+
+  /**
+   * Set long by key handle.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putLong(@NonNull final KeyHandle handle, final long value) {
+    putPrimitive(handle, Types.LONG, value);
+  }
+
+  /**
+   * Set float by key handle.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putFloat(@NonNull final KeyHandle handle, final float value) {
+    putPrimitive(handle, Types.FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  /**
+   * Set boolean by key handle.
+   *
+   * @param handle the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putBoolean(@NonNull final KeyHandle handle, final boolean value) {
+    putPrimitive(handle, Types.BOOL, value ? 1 : 0);
+  }
+
+  /**
+   * Set string. <code>null</code> value removes the key.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  public void putString(@Nullable final String key, @Nullable final String value) {
+    putObject(key, Types.STRING, value);
+  }
+
+  /**
+   * Set set of strings. <code>null</code> value removes the key.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param values the value to store
+   */
+  public void putStringSet(@Nullable final String key, @Nullable final Set<String> values) {
+    putObject(key, Types.SET, values);
+  }
+
+  /**
+   * Set value of any type. Known types are stored in typed form, <code>null</code> value removes the key.
+   *
+   * @param key the key, identifier of value in storage.
+   * @param value the value to store
+   */
+  @SuppressWarnings("unchecked")
+  public void put(@Nullable final String key, @Nullable final Object value) {
+    if (value instanceof Integer) {
+      putInt(key, (Integer) value);
+    } else if (value instanceof Long) {
+      putLong(key, (Long) value);
+    } else if (value instanceof Float) {
+      putFloat(key, (Float) value);
+    } else if (value instanceof Boolean) {
+      putBoolean(key, (Boolean) value);
+    } else if (value instanceof String) {
+      putString(key, (String) value);
+    } else if (value instanceof Set<?>) {
+      putStringSet(key, (Set<String>) value);
+    } else {
+      putObject(key, OBJECT, value);
+    }
+  }
+
+  /**
+   * Copy all values from map into storage.
+   *
+   * @param values the values to copy.
+   */
+  public void putAll(@NonNull final Map<String, ?> values) {
+    for (final Map.Entry<String, ?> entry : values.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Remove value from storage by its key.
+   *
+   * @param key the key of value.
+   * @return true - value removed, otherwise false.
+   */
+  public boolean remove(@Nullable final String key) {
+    checkModifiable();
+
+    final int hash = hash(key);
+    final int[] index = mIndex;
+    final int mask = index.length - 1;
+
+    for (int i = hash & mask, e; EMPTY != (e = index[i]); i = (i + 1) & mask) {
+      if (e > 0 && matches(e - 1, key, hash)) {
+        final int slot = e - 1;
+
+        index[i] = DELETED;
+        mKeys[slot] = null;
+        mTypes[slot] = FREE;
+        mObjects[slot] = null;
+        mPrimitives[slot] = 0;
+        mSize--;
+
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** Clear the storage. */
+  public void clear() {
+    checkModifiable();
+
+    allocate(MIN_CAPACITY);
+  }
+
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Calculate hash of the key.
+   *
+   * @param key the key.
+   * @return calculated hash.
+   */
+  /* package */ static int hash(@Nullable final String key) {
+    if (null == key) {
+      return 0;
+    }
+
+    final int h = key.hashCode();
+
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Is slot in use by provided key.
+   *
+   * @param slot slot to check.
+   * @param key expected key.
+   * @param hash expected key hash.
+   * @return true - slot matches the key, otherwise false.
+   */
+  private boolean matches(final int slot, @Nullable final String key, final int hash) {
+    if (mHashes[slot] != hash) {
+      return false;
+    }
+
+    final String stored = mKeys[slot];
+
+    return (stored == key) || (null != key && key.equals(stored));
+  }
+
+  /**
+   * Find slot of the key.
+   *
+   * @param key the key to find.
+   * @param hash hash of the key.
+   * @return slot index, otherwise -1.
+   */
+  private int find(@Nullable final String key, final int hash) {
+    final int[] index = mIndex;
+    final int mask = index.length - 1;
+
+    for (int i = hash & mask, e; EMPTY != (e = index[i]); i = (i + 1) & mask) {
+      if (e > 0 && matches(e - 1, key, hash)) {
+        return e - 1;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Update existing primitive value without copying the storage.
+   *
+   * @param key the key.
+   * @param handle the key handle, if provided used for slot lookup.
+   * @param type data type of the value.
+   * @param bits raw bits of the value.
+   * @return true - value updated, otherwise false.
+   */
+  private boolean updateInPlace(@Nullable final String key, @Nullable final KeyHandle handle, final int type,
+                                final long bits) {
+    if (Types.LONG == type || !STATE.compareAndSet(this, EXCLUSIVE, WRITING)) {
+      return false;
+    }
+
+    try {
+      final int slot = (null == handle) ? find(key, hash(key)) : resolve(handle);
+
+      if (slot < 0 || type != mTypes[slot]) {
+        return false;
+      }
+
+      mPrimitives[slot] = bits;
+
+      return true;
+    } finally {
+      mState = EXCLUSIVE;
+    }
+  }
+
+  /**
+   * Find slot of the key handle. Slot cached by handle is verified first, if it does not belong to the key anymore
+   * (storage was cleared, compacted or reloaded) key is searched again and handle is re-bound to the found slot.
+   *
+   * @param handle the key handle.
+   * @return slot index, otherwise -1.
+   */
+  private int resolve(@NonNull final KeyHandle handle) {
+    final String key = handle.getKey();
+    final int hash = handle.Hash;
+    final int cached = handle.Slot;
+
+    if (cached >= 0 && cached < mSlots && FREE != mTypes[cached] && matches(cached, key, hash)) {
+      return cached;
+    }
+
+    final int slot = find(key, hash);
+
+    if (slot >= 0) {
+      handle.Slot = slot;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Find or create slot for the key.
+   *
+   * @param key the key.
+   * @param hash hash of the key.
+   * @return slot index.
+   */
+  private int slotFor(@Nullable final String key, final int hash) {
+    final int existing = find(key, hash);
+
+    if (existing >= 0) {
+      return existing;
+    }
+
+    if (mSlots == mKeys.length) {
+      grow();
+    }
+
+    final int slot = mSlots++;
+    mKeys[slot] = key;
+    mHashes[slot] = hash;
+    mSize++;
+
+    link(slot, hash);
+
+    return slot;
+  }
+
+  /**
+   * Register slot in hash index.
+   *
+   * @param slot slot index.
+   * @param hash hash of the slot key.
+   */
+  private void link(final int slot, final int hash) {
+    final int[] index = mIndex;
+    final int mask = index.length - 1;
+    int i = hash & mask;
+
+    while (index[i] > 0) {
+      i = (i + 1) & mask;
+    }
+
+    index[i] = slot + 1;
+  }
+
+  /**
+   * Store primitive value.
+   *
+   * @param key the key.
+   * @param type data type of the value.
+   * @param bits raw bits of the value.
+   */
+  private void putPrimitive(@Nullable final String key, final int type, final long bits) {
+    checkModifiable();
+
+    final int slot = slotFor(key, hash(key));
+    mTypes[slot] = (byte) type;
+    mPrimitives[slot] = bits;
+    mObjects[slot] = null;
+  }
+
+  /**
+   * Store primitive value by key handle. Handle is re-bound to the slot of the key.
+   *
+   * @param handle the key handle.
+   * @param type data type of the value.
+   * @param bits raw bits of the value.
+   */
+  private void putPrimitive(@NonNull final KeyHandle handle, final int type, final long bits) {
+    checkModifiable();
+
+    int slot = resolve(handle);
+
+    if (slot < 0) {
+      handle.Slot = slot = slotFor(handle.getKey(), handle.Hash);
+    }
+
+    mTypes[slot] = (byte) type;
+    mPrimitives[slot] = bits;
+    mObjects[slot] = null;
+  }
+
+  /**
+   * Store object value. <code>null</code> value removes the key.
+   *
+   * @param key the key.
+   * @param type data type of the value.
+   * @param value the value.
+   */
+  private void putObject(@Nullable final String key, final int type, @Nullable final Object value) {
+    if (null == value) {
+      remove(key);
+      return;
+    }
+
+    checkModifiable();
+
+    final int slot = slotFor(key, hash(key));
+    mTypes[slot] = (byte) type;
+    mPrimitives[slot] = 0;
+    mObjects[slot] = value;
+  }
+
+  /**
+   * Get value of the slot as string.
+   *
+   * @param slot the slot index, negative value - key not found.
+   * @param defValue value to return if key is not found.
+   * @return found value, otherwise default value.
+   */
+  private String stringAt(final int slot, final String defValue) {
+    return (slot < 0) ? defValue : String.valueOf(valueAt(slot));
+  }
+
+  /**
+   * Get value of the slot as set of strings.
+   *
+   * @param slot the slot index, negative value - key not found.
+   * @param defValues value to return if key is not found or stored value is not a set.
+   * @return found value, otherwise default value.
+   */
+  @SuppressWarnings("unchecked")
+  private Set<String> stringSetAt(final int slot, final Set<String> defValues) {
+    if (slot >= 0 && Types.SET == mTypes[slot]) {
+      return (Set<String>) mObjects[slot];
+    }
+
+    return defValues;
+  }
+
+  /**
+   * Get value of the slot as int.
+   *
+   * @param slot the slot index, negative value - key not found.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  private int intAt(final int slot, final int defValue) {
+    if (slot >= 0) {
+      switch (mTypes[slot]) {
+        case Types.INT:
+          return (int) mPrimitives[slot];
+        case Types.LONG:
+          return (int) mPrimitives[slot];
+        case Types.FLOAT:
+          return (int) Float.intBitsToFloat((int) mPrimitives[slot]);
+        case OBJECT:
+          if (mObjects[slot] instanceof Number) {
+            return ((Number) mObjects[slot]).intValue();
+          }
+          break;
+      }
+    }
+
+    return defValue;
+  }
+
+  /**
+   * Get value of the slot as long.
+   *
+   * @param slot the slot index, negative value - key not found.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  private long longAt(final int slot, final long defValue) {
+    if (slot >= 0) {
+      switch (mTypes[slot]) {
+        case Types.INT:
+          return (int) mPrimitives[slot];
+        case Types.LONG:
+          return mPrimitives[slot];
+        case Types.FLOAT:
+          return (long) Float.intBitsToFloat((int) mPrimitives[slot]);
+        case OBJECT:
+          if (mObjects[slot] instanceof Number) {
+            return ((Number) mObjects[slot]).longValue();
+          }
+          break;
+      }
+    }
+
+    return defValue;
+  }
+
+  /**
+   * Get value of the slot as float.
+   *
+   * @param slot the slot index, negative value - key not found.
+   * @param defValue value to return if key is not found or stored value is not a number.
+   * @return found value, otherwise default value.
+   */
+  private float floatAt(final int slot, final float defValue) {
+    if (slot >= 0) {
+      switch (mTypes[slot]) {
+        case Types.INT:
+          return (int) mPrimitives[slot];
+        case Types.LONG:
+          return mPrimitives[slot];
+        case Types.FLOAT:
+          return Float.intBitsToFloat((int) mPrimitives[slot]);
+        case OBJECT:
+          if (mObjects[slot] instanceof Number) {
+            return ((Number) mObjects[slot]).floatValue();
+          }
+          break;
+      }
+    }
+
+    return defValue;
+  }
+
+  /**
+   * Get value of the slot as boolean.
+   *
+   * @param slot the slot index, negative value - key not found.
+   * @param defValue value to return if key is not found or stored value is not a boolean.
+   * @return found value, otherwise default value.
+   */
+  private boolean booleanAt(final int slot, final boolean defValue) {
+    if (slot >= 0 && Types.BOOL == mTypes[slot]) {
+      return 0 != mPrimitives[slot];
+    }
+
+    return defValue;
+  }
+
+  /**
+   * Get boxed value stored in slot.
+   *
+   * @param slot the slot index.
+   * @return boxed value.
+   */
+  private Object valueAt(final int slot) {
+    switch (mTypes[slot]) {
+      case Types.INT:
+        return (int) mPrimitives[slot];
+      case Types.LONG:
+        return mPrimitives[slot];
+      case Types.FLOAT:
+        return Float.intBitsToFloat((int) mPrimitives[slot]);
+      case Types.BOOL:
+        return 0 != mPrimitives[slot];
+      default:
+        return mObjects[slot];
+    }
+  }
+
+  /** Throw exception if storage is frozen. */
+  private void checkModifiable() {
+    if (mFrozen) {
+      throw new UnsupportedOperationException("Storage is read-only.");
+    }
+  }
+
+  /**
+   * Allocate empty arrays.
+   *
+   * @param capacity quantity of slots.
+   */
+  private void allocate(final int capacity) {
+    mKeys = new String[capacity];
+    mHashes = new int[capacity];
+    mTypes = new byte[capacity];
+    mPrimitives = new long[capacity];
+    mObjects = new Object[capacity];
+    mIndex = new int[capacity * 2];
+    mSlots = 0;
+    mSize = 0;
+  }
+
+  /** Compact removed slots and double the capacity if storage is more than half full. */
+  private void grow() {
+    final String[] keys = mKeys;
+    final int[] hashes = mHashes;
+    final byte[] types = mTypes;
+    final long[] primitives = mPrimitives;
+    final Object[] objects = mObjects;
+    final int slots = mSlots;
+
+    int capacity = keys.length;
+    while (mSize * 2 >= capacity) {
+      capacity *= 2;
+    }
+
+    allocate(capacity);
+
+    for (int i = 0; i < slots; i++) {
+      if (FREE != types[i]) {
+        final int slot = mSlots++;
+        mKeys[slot] = keys[i];
+        mHashes[slot] = hashes[i];
+        mTypes[slot] = types[i];
+        mPrimitives[slot] = primitives[i];
+        mObjects[slot] = objects[i];
+        mSize++;
+
+        link(slot, hashes[i]);
+      }
+    }
+  }
+
+  /* [ NESTED DECLARATIONS ] ====================================================================================== */
+
+  /** Map view of the storage. */
+  private final class MapView extends AbstractMap<String, Object> {
+    /** Cached entries set. */
+    private Set<Entry<String, Object>> mEntries;
+
+    /**
+     * Get storage of the view.
+     *
+     * @return instance of the storage.
+     */
+    private TypedStorage owner() {
+      return TypedStorage.this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+      return mSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsKey(final Object key) {
+      return (null == key || key instanceof String) && contains((String) key);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object get(final Object key) {
+      return (null == key || key instanceof String) ? TypedStorage.this.get((String) key) : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object put(final String key, final Object value) {
+      final Object previous = TypedStorage.this.get(key);
+      TypedStorage.this.put(key, value);
+
+      return previous;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object remove(final Object key) {
+      if (null == key || key instanceof String) {
+        final Object previous = TypedStorage.this.get((String) key);
+        TypedStorage.this.remove((String) key);
+
+        return previous;
+      }
+
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clear() {
+      TypedStorage.this.clear();
+    }
+
+    /** {@inheritDoc} */
+    @NonNull
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      if (null == mEntries) {
+        mEntries = new AbstractSet<Entry<String, Object>>() {
+          @NonNull
+          @Override
+          public Iterator<Entry<String, Object>> iterator() {
+            return new EntryIterator();
+          }
+
+          @Override
+          public int size() {
+            return mSize;
+          }
+        };
+      }
+
+      return mEntries;
+    }
+  }
+
+  /** Iterator over used slots. */
+  private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    /** Slot of the next entry. */
+    private int mNext = -1;
+    /** Slot of the last returned entry. */
+    private int mLast = -1;
+
+    /** Create iterator. */
+    private EntryIterator() {
+      advance();
+    }
+
+    /** Move to next used slot. */
+    private void advance() {
+      do {
+        mNext++;
+      } while (mNext < mSlots && FREE == mTypes[mNext]);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNext() {
+      return mNext < mSlots;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      mLast = mNext;
+      advance();
+
+      return new AbstractMap.SimpleImmutableEntry<>(mKeys[mLast], valueAt(mLast));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void remove() {
+      if (mLast < 0) {
+        throw new IllegalStateException();
+      }
+
+      TypedStorage.this.remove(mKeys[mLast]);
+      mLast = -1;
+    }
+  }
+}
@@ -0,0 +1,468 @@
+package com.artfulbits.uniprefs.toolbox;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.artfulbits.uniprefs.PreferencesUnified;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary serialization of the preferences. Format:
+ * <pre>
+ * header:  magic (4 bytes), format version (1 byte), entries count (varint)
+ * entry:   type tag (1 byte, {@link Types} constant), key (varint length + UTF-8), value
+ * value:   INT, FLOAT - 4 bytes; LONG - 8 bytes; BOOL - 1 byte (big-endian)
+ *          STRING - varint length + UTF-8; SET - varint count + strings
+ * </pre>
+ * Empty data is serialized to empty array, that drops the file. Values of unsupported types are skipped. Implements
+ * {@link PreferencesUnified.BufferSerialization}, so big files are decoded directly from memory-mapped buffer.
+ */
+public final class BinarySerialization implements PreferencesUnified.BufferSerialization {
+  /* [ CONSTANTS ] ================================================================================================ */
+
+  /** SINGLETON. Instance of the binary serializer. */
+  public static final PreferencesUnified.Serialization Instance = new BinarySerialization();
+
+  /** Magic number of the format, 'UPBF'. */
+  public static final int MAGIC = 0x55504246;
+  /** Current version of the format. */
+  public static final int VERSION = 1;
+
+  /** UTF-8 encoding of the strings. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Estimated size of the entry, used for initial buffer allocation. */
+  private static final int ENTRY_SIZE = 32;
+
+  /** Hidden constructor. */
+  private BinarySerialization() {
+    // do nothing
+  }
+
+  /* [ Interface Serialization ] ================================================================================== */
+
+  /** {@inheritDoc} */
+  @NonNull
+  @Override
+  public byte[] serialize(final Map<String, ?> data) {
+    if (null == data || data.isEmpty()) {
+      return new byte[]{};
+    }
+
+    // reusable buffer of the save thread, only the result is allocated
+    final SaveBuffers.Output buffer = SaveBuffers.current().output(16 + data.size() * ENTRY_SIZE);
+    final Output out = new Output(buffer);
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+
+      // count is patched after the write, unsupported values are skipped
+      int skipped = 0;
+      final int counter = out.reserveVarInt();
+
+      for (final Map.Entry<String, ?> entry : data.entrySet()) {
+        final Object value = entry.getValue();
+        final int type = typeOf(value);
+
+        if (0 == type || null == entry.getKey()) {
+          skipped++;
+          continue;
+        }
+
+        out.writeByte(type);
+        out.writeString(entry.getKey());
+        writeValue(out, type, value);
+      }
+
+      out.patchVarInt(counter, data.size() - skipped);
+
+      if (skipped > 0) {
+        Log.e(PreferencesUnified.LOG_TAG, "Values of unsupported types are not serialized: " + skipped);
+      }
+
+      return buffer.toByteArray();
+    } finally {
+      buffer.close();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @NonNull
+  @Override
+  public Map<String, ?> deserialize(final byte[] data) {
+    if (null == data || 0 == data.length) {
+      return new HashMap<>();
+    }
+
+    return deserialize(ByteBuffer.wrap(data));
+  }
+
+  /* [ Interface BufferSerialization ] ============================================================================ */
+
+  /** {@inheritDoc} */
+  @NonNull
+  @Override
+  public Map<String, ?> deserialize(@NonNull final ByteBuffer data) {
+    if (!data.hasRemaining()) {
+      return new HashMap<>();
+    }
+
+    final Input in = new Input(data);
+
+    if (MAGIC != in.readInt()) {
+      throw new IllegalArgumentException("Unknown format of the data.");
+    }
+
+    final int version = in.readByte();
+
+    if (version > VERSION) {
+      throw new IllegalArgumentException("Unsupported version of the format: " + version);
+    }
+
+    final int count = in.readCount();
+    final Map<String, Object> result = new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+
+    for (int i = 0; i < count; i++) {
+      final int type = in.readByte();
+      final String key = in.readString();
+
+      result.put(key, readValue(in, type));
+    }
+
+    return result;
+  }
+
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Get type tag of the value.
+   *
+   * @param value value to check.
+   * @return type tag, otherwise 0 for unsupported values.
+   */
+  private static int typeOf(final Object value) {
+    if (value instanceof Set<?>) {
+      for (final Object item : (Set<?>) value) {
+        if (!(item instanceof String)) {
+          return 0;
+        }
+      }
+    }
+
+    try {
+      return (null == value) ? 0 : Types.getDataType(value);
+    } catch (@NonNull final IllegalArgumentException ignored) {
+      return 0;
+    }
+  }
+
+  /**
+   * Write value of the entry.
+   *
+   * @param out output buffer.
+   * @param type type tag of the value.
+   * @param value value to write.
+   */
+  @SuppressWarnings("unchecked")
+  private static void writeValue(@NonNull final Output out, final int type, @NonNull final Object value) {
+    switch (type) {
+      case Types.INT:
+        out.writeInt((Integer) value);
+        break;
+
+      case Types.LONG:
+        out.writeLong((Long) value);
+        break;
+
+      case Types.FLOAT:
+        out.writeInt(Float.floatToRawIntBits((Float) value));
+        break;
+
+      case Types.BOOL:
+        out.writeByte(((Boolean) value) ? 1 : 0);
+        break;
+
+      case Types.STRING:
+        out.writeString((String) value);
+        break;
+
+      case Types.SET:
+        final Set<String> set = (Set<String>) value;
+        out.writeVarInt(set.size());
+
+        for (final String item : set) {
+          out.writeString(item);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Read value of the entry.
+   *
+   * @param in input buffer.
+   * @param type type tag of the value.
+   * @return extracted value.
+   */
+  @NonNull
+  private static Object readValue(@NonNull final Input in, final int type) {
+    switch (type) {
+      case Types.INT:
+        return in.readInt();
+
+      case Types.LONG:
+        return in.readLong();
+
+      case Types.FLOAT:
+        return Float.intBitsToFloat(in.readInt());
+
+      case Types.BOOL:
+        return 0 != in.readByte();
+
+      case Types.STRING:
+        return in.readString();
+
+      case Types.SET:
+        final int size = in.readCount();
+        final Set<String> set = new HashSet<>(Math.max(16, (int) (size / 0.75f) + 1));
+
+        for (int i = 0; i < size; i++) {
+          set.add(in.readString());
+        }
+
+        return set;
+    }
+
+    throw new IllegalArgumentException("Unknown type of the value: " + type);
+  }
+
+  /* [ NESTED DECLARATIONS ] ====================================================================================== */
+
+  /** Writer of the growable output buffer. */
+  private static final class Output {
+    /** Data. */
+    private final SaveBuffers.Output mData;
+
+    /**
+     * Create writer.
+     *
+     * @param data borrowed output buffer.
+     */
+    public Output(@NonNull final SaveBuffers.Output data) {
+      mData = data;
+    }
+
+    /**
+     * Write one byte.
+     *
+     * @param value byte to write, lowest 8 bits are used.
+     */
+    public void writeByte(final int value) {
+      mData.ensure(1).put((byte) value);
+    }
+
+    /**
+     * Write 4 bytes, big-endian.
+     *
+     * @param value value to write.
+     */
+    public void writeInt(final int value) {
+      mData.ensure(4).putInt(value);
+    }
+
+    /**
+     * Write 8 bytes, big-endian.
+     *
+     * @param value value to write.
+     */
+    public void writeLong(final long value) {
+      mData.ensure(8).putLong(value);
+    }
+
+    /**
+     * Write unsigned varint, 7 bits per byte.
+     *
+     * @param value value to write.
+     */
+    public void writeVarInt(final int value) {
+      final ByteBuffer data = mData.ensure(5);
+
+      int v = value;
+      while ((v & ~0x7f) != 0) {
+        data.put((byte) ((v & 0x7f) | 0x80));
+        v >>>= 7;
+      }
+
+      data.put((byte) v);
+    }
+
+    /**
+     * Reserve fixed 5 bytes for varint, that is patched later.
+     *
+     * @return position of the reserved varint.
+     */
+    public int reserveVarInt() {
+      final ByteBuffer data = mData.ensure(5);
+
+      final int position = data.position();
+      data.position(position + 5);
+
+      return position;
+    }
+
+    /**
+     * Write value into reserved varint. Padded encoding is used, 5 bytes always.
+     *
+     * @param position position of the reserved varint.
+     * @param value value to write.
+     */
+    public void patchVarInt(final int position, final int value) {
+      final ByteBuffer data = mData.ensure(0);
+
+      for (int i = 0; i < 4; i++) {
+        data.put(position + i, (byte) (((value >>> (7 * i)) & 0x7f) | 0x80));
+      }
+
+      data.put(position + 4, (byte) (value >>> 28));
+    }
+
+    /**
+     * Write string as varint length of UTF-8 bytes and bytes. ASCII strings are encoded without allocations.
+     *
+     * @param value string to write.
+     */
+    public void writeString(@NonNull final String value) {
+      final int length = value.length();
+      int ascii = 0;
+
+      while (ascii < length && value.charAt(ascii) < 0x80) {
+        ascii++;
+      }
+
+      if (ascii == length) {
+        writeVarInt(length);
+
+        final ByteBuffer data = mData.ensure(length);
+        for (int i = 0; i < length; i++) {
+          data.put((byte) value.charAt(i));
+        }
+      } else {
+        final byte[] bytes = value.getBytes(UTF8);
+
+        writeVarInt(bytes.length);
+        mData.ensure(bytes.length).put(bytes);
+      }
+    }
+  }
+
+  /** Input buffer reader. */
+  private static final class Input {
+    /** Data. */
+    private final ByteBuffer mData;
+    /** Temporary buffer of the strings, used for direct buffers only. */
+    private byte[] mScratch;
+
+    /**
+     * Create reader.
+     *
+     * @param data data between position and limit.
+     */
+    public Input(@NonNull final ByteBuffer data) {
+      mData = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Read one byte.
+     *
+     * @return unsigned byte value.
+     */
+    public int readByte() {
+      return mData.get() & 0xff;
+    }
+
+    /**
+     * Read 4 bytes, big-endian.
+     *
+     * @return value.
+     */
+    public int readInt() {
+      return mData.getInt();
+    }
+
+    /**
+     * Read 8 bytes, big-endian.
+     *
+     * @return value.
+     */
+    public long readLong() {
+      return mData.getLong();
+    }
+
+    /**
+     * Read unsigned varint.
+     *
+     * @return value.
+     */
+    public int readVarInt() {
+      int result = 0;
+
+      for (int shift = 0; shift < 35; shift += 7) {
+        final int b = mData.get();
+        result |= (b & 0x7f) << shift;
+
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+
+      throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    /**
+     * Read count of items. Each item takes at least one byte, bigger counts means corrupted data.
+     *
+     * @return count of items.
+     */
+    public int readCount() {
+      final int count = readVarInt();
+
+      if (count < 0 || count > mData.remaining()) {
+        throw new IllegalArgumentException("Corrupted data, wrong count of items: " + count);
+      }
+
+      return count;
+    }
+
+    /**
+     * Read string, varint length of UTF-8 bytes and bytes.
+     *
+     * @return string value.
+     */
+    @NonNull
+    public String readString() {
+      final int length = readCount();
+
+      if (mData.hasArray()) {
+        final int offset = mData.arrayOffset() + mData.position();
+        mData.position(mData.position() + length);
+
+        return new String(mData.array(), offset, length, UTF8);
+      }
+
+      if (null == mScratch || mScratch.length < length) {
+        mScratch = new byte[Math.max(length, 256)];
+      }
+
+      mData.get(mScratch, 0, length);
+
+      return new String(mScratch, 0, length, UTF8);
+    }
+  }
+}
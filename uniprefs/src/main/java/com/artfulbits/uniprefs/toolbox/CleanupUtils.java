@@ -6,6 +6,7 @@ import com.artfulbits.uniprefs.PreferencesUnified;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.channels.Channel;
 
 /**
@@ -43,4 +44,19 @@ public final class CleanupUtils {
       }
     }
   }
+
+  /**
+   * Close random access file gracefully.
+   *
+   * @param raf instance of the file.
+   */
+  public static void destroy(final RandomAccessFile raf) {
+    if (null != raf) {
+      try {
+        raf.close();
+      } catch (final IOException ignored) {
+        Log.i(PreferencesUnified.LOG_TAG, ignored.getMessage());
+      }
+    }
+  }
 }
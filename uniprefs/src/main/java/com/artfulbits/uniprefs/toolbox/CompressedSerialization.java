@@ -0,0 +1,313 @@
+package com.artfulbits.uniprefs.toolbox;
+
+import android.os.Debug;
+import android.support.annotation.NonNull;
+
+import com.artfulbits.uniprefs.PreferencesUnified;
+import com.artfulbits.uniprefs.toolbox.counters.Statistics;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression stage of the save pipeline, wraps any serializer. Serialized data bigger than threshold is compressed by
+ * {@link Deflater} and stored with header: magic (4 bytes), codec flag (1 byte), original size (4 bytes). Smaller data
+ * and data that does not compress is stored as is, without header, so files of the wrapped serializer stay readable in
+ * both directions.
+ * <p/>
+ * Delta and buffer capabilities of the wrapped serializer are forwarded. Streaming serializer is used through its
+ * byte array methods: threshold and header of the compressed data need the whole serialized data.
+ * <p/>
+ * Compression ratio and CPU time are reported to {@link PreferencesUnified#getStatistics()}.
+ */
+public final class CompressedSerialization
+    implements PreferencesUnified.DeltaSerialization, PreferencesUnified.BufferSerialization {
+  /* [ CONSTANTS ] ================================================================================================ */
+
+  /** Default threshold of compression, 4Kb. */
+  public static final int DEFAULT_THRESHOLD = 4 * 1024;
+  /** Magic number of the compressed data. First byte is not a valid UTF-8 and JSON start. */
+  public static final int MAGIC = 0x89555a50;
+  /** Codec flag: deflate. */
+  public static final int FLAG_DEFLATE = 1;
+
+  /** Size of the header: magic, flag and original size. */
+  private static final int HEADER_SIZE = 4 + 1 + 4;
+  /** Maximum expansion ratio of the deflate stream. */
+  private static final int MAX_RATIO = 1032;
+
+  /* [ MEMBERS ] ================================================================================================== */
+
+  /** Wrapped serializer. */
+  @NonNull
+  private final PreferencesUnified.Serialization mSerializer;
+  /** Minimal size of the data for compression. */
+  private final int mThreshold;
+  /** Compression level. */
+  private final int mLevel;
+
+  /* [ CONSTRUCTORS ] ============================================================================================= */
+
+  /**
+   * Create compression stage with default threshold and fastest compression.
+   *
+   * @param serializer wrapped serializer. {@link PreferencesUnified.StreamingSerialization} is used through its byte
+   * array methods.
+   */
+  public CompressedSerialization(@NonNull final PreferencesUnified.Serialization serializer) {
+    this(serializer, DEFAULT_THRESHOLD, Deflater.BEST_SPEED);
+  }
+
+  /**
+   * Create compression stage.
+   *
+   * @param serializer wrapped serializer. {@link PreferencesUnified.StreamingSerialization} is used through its byte
+   * array methods.
+   * @param threshold minimal size of the serialized data for compression, in bytes.
+   * @param level compression level, {@link Deflater#BEST_SPEED} ... {@link Deflater#BEST_COMPRESSION}.
+   */
+  public CompressedSerialization(@NonNull final PreferencesUnified.Serialization serializer, final int threshold,
+                                 final int level) {
+    mSerializer = serializer;
+    mThreshold = threshold;
+    mLevel = level;
+  }
+
+  /* [ Interface Serialization ] ================================================================================== */
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] serialize(final Map<String, ?> data) {
+    return compressed(mSerializer.serialize(data));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, ?> deserialize(final byte[] data) {
+    if (!isCompressed(data)) {
+      return mSerializer.deserialize(data);
+    }
+
+    return deserializeRaw(decompressed(data));
+  }
+
+  /* [ Interface DeltaSerialization ] ============================================================================= */
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] serialize(@NonNull final Map<String, ?> data, @NonNull final Set<String> changed,
+                          @NonNull final Set<String> removed, final boolean full) {
+    if (mSerializer instanceof PreferencesUnified.DeltaSerialization) {
+      return compressed(((PreferencesUnified.DeltaSerialization) mSerializer).serialize(data, changed, removed, full));
+    }
+
+    return serialize(data);
+  }
+
+  /* [ Interface BufferSerialization ] ============================================================================ */
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, ?> deserialize(@NonNull final ByteBuffer data) {
+    final boolean compressed = data.remaining() >= HEADER_SIZE && MAGIC == data.getInt(data.position());
+
+    if (!compressed && mSerializer instanceof PreferencesUnified.BufferSerialization) {
+      return ((PreferencesUnified.BufferSerialization) mSerializer).deserialize(data);
+    }
+
+    // compressed data is smaller than original, heap copy of it is cheap
+    final byte[] copy = new byte[data.remaining()];
+    data.duplicate().get(copy);
+
+    return compressed ? deserializeRaw(decompressed(copy)) : mSerializer.deserialize(copy);
+  }
+
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Compress serialized data if it is bigger than threshold.
+   *
+   * @param raw serialized data.
+   * @return data to store.
+   */
+  private byte[] compressed(final byte[] raw) {
+    if (null == raw || raw.length < mThreshold) {
+      return raw;
+    }
+
+    final Statistics stats = PreferencesUnified.getStatistics();
+    final long started = cpuTime();
+    final byte[] compressed = compress(raw);
+    final long finished = cpuTime();
+
+    if (started >= 0 && finished >= 0) {
+      stats.CompressionTime.addAndGet(finished - started);
+    }
+
+    stats.CompressionInput.addAndGet(raw.length);
+
+    // incompressible data is stored as is
+    final byte[] result = (null == compressed) ? raw : compressed;
+    stats.CompressionOutput.addAndGet(result.length);
+
+    return result;
+  }
+
+  /**
+   * Decompress data and report CPU time of decompression.
+   *
+   * @param data compressed data with header.
+   * @return original data.
+   */
+  @NonNull
+  private static byte[] decompressed(@NonNull final byte[] data) {
+    final long started = cpuTime();
+    final byte[] raw = decompress(data);
+    final long finished = cpuTime();
+
+    if (started >= 0 && finished >= 0) {
+      PreferencesUnified.getStatistics().DecompressionTime.addAndGet(finished - started);
+    }
+
+    return raw;
+  }
+
+  /**
+   * De-serialize decompressed data by wrapped serializer.
+   *
+   * @param raw original data.
+   * @return extracted collection of values.
+   */
+  private Map<String, ?> deserializeRaw(@NonNull final byte[] raw) {
+    if (mSerializer instanceof PreferencesUnified.BufferSerialization) {
+      return ((PreferencesUnified.BufferSerialization) mSerializer).deserialize(ByteBuffer.wrap(raw));
+    }
+
+    return mSerializer.deserialize(raw);
+  }
+
+  /**
+   * Is data compressed by this stage.
+   *
+   * @param data data to check.
+   * @return true - data has compression header, otherwise false.
+   */
+  public static boolean isCompressed(final byte[] data) {
+    return null != data && data.length >= HEADER_SIZE && MAGIC == readInt(data, 0);
+  }
+
+  /**
+   * Compress data.
+   *
+   * @param raw data to compress.
+   * @return compressed data with header, otherwise <code>null</code> if compressed data is not smaller.
+   */
+  private byte[] compress(@NonNull final byte[] raw) {
+    final Deflater deflater = new Deflater(mLevel);
+    final SaveBuffers buffers = SaveBuffers.current();
+    final SaveBuffers.Output out = buffers.output(raw.length / 4 + HEADER_SIZE);
+
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+
+      final byte[] buffer = buffers.stream();
+      final ByteBuffer header = out.ensure(HEADER_SIZE);
+
+      header.putInt(MAGIC);
+      header.put((byte) FLAG_DEFLATE);
+      header.putInt(raw.length);
+
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+
+        // compression does not help, stop it early
+        if (out.size() >= raw.length) {
+          return null;
+        }
+      }
+
+      return out.toByteArray();
+    } finally {
+      out.close();
+      deflater.end();
+    }
+  }
+
+  /**
+   * Decompress data.
+   *
+   * @param data compressed data with header.
+   * @return original data.
+   */
+  @NonNull
+  private static byte[] decompress(@NonNull final byte[] data) {
+    final int flag = data[4] & 0xff;
+    final int length = readInt(data, 5);
+
+    if (FLAG_DEFLATE != flag) {
+      throw new IllegalArgumentException("Unsupported compression of the data: " + flag);
+    }
+
+    // corrupted or foreign header, deflate never expands data more than its maximum ratio
+    if (length < 0 || length > (long) (data.length - HEADER_SIZE) * MAX_RATIO) {
+      throw new IllegalArgumentException("Corrupted size of the compressed data: " + length);
+    }
+
+    final Inflater inflater = new Inflater();
+
+    try {
+      inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+
+      final byte[] raw = new byte[length];
+      int offset = 0;
+
+      while (offset < length && !inflater.finished()) {
+        final int inflated = inflater.inflate(raw, offset, length - offset);
+
+        if (0 == inflated && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+
+        offset += inflated;
+      }
+
+      if (offset != length) {
+        throw new IllegalArgumentException("Truncated compressed data, expected: " + length + ", found: " + offset);
+      }
+
+      return raw;
+    } catch (@NonNull final DataFormatException ex) {
+      throw new IllegalArgumentException(ex);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Get CPU time of the current thread.
+   *
+   * @return time in nanos, -1 if CPU time is not supported.
+   */
+  private static long cpuTime() {
+    final long time = Debug.threadCpuTimeNanos();
+
+    return (time < 0) ? -1 : time;
+  }
+
+  /**
+   * Read int in big-endian order.
+   *
+   * @param data data to read.
+   * @param offset offset of the value.
+   * @return value.
+   */
+  private static int readInt(@NonNull final byte[] data, final int offset) {
+    return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) |
+        (data[offset + 3] & 0xff);
+  }
+}
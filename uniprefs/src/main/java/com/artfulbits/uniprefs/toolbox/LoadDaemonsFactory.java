@@ -0,0 +1,35 @@
+package com.artfulbits.uniprefs.toolbox;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create threads of the bulk preload with daemon flag and specific easy recognizable name. Loading is on the start
+ * path of the application, so threads keep normal priority and do not own save buffers.
+ */
+public final class LoadDaemonsFactory implements ThreadFactory {
+  /** Single instance of class. */
+  public static final ThreadFactory Instance = new LoadDaemonsFactory();
+  /** Counter of created threads, used for getting unique ID. */
+  private static final AtomicInteger _counter = new AtomicInteger();
+
+  /** hidden constructor. */
+  private LoadDaemonsFactory() {
+    // only one instance allowed
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  @NonNull
+  public Thread newThread(@NonNull final Runnable r) {
+    final int index = _counter.getAndIncrement();
+    final Thread th = new Thread(r, "uniprefs-loader-" + index);
+
+    // loader should not keep application alive
+    th.setDaemon(true);
+
+    return th;
+  }
+}
@@ -0,0 +1,385 @@
+package com.artfulbits.uniprefs.toolbox;
+
+import android.support.annotation.NonNull;
+
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Reusable I/O buffers of the save thread. Each thread created by {@link SaveDaemonsFactory} owns one instance, so
+ * saves done by the thread pool do not allocate file buffers and growable serialization buffers again and again. Other
+ * threads (forced saves, shutdown hooks) receive a new instance on each call, buffers are not retained for them.
+ * <p/>
+ * Buffers are not thread-safe and may be used only by the owner thread, during the save call.
+ */
+public final class SaveBuffers {
+  /* [ CONSTANTS ] ================================================================================================ */
+
+  /** Size of the file stream buffer. */
+  public static final int STREAM_SIZE = 32 * 1024;
+  /** Bigger buffers are not retained after the use, save of the huge file should not pin memory forever. */
+  public static final int MAX_RETAINED = 1024 * 1024;
+  /** Minimal capacity of the growable buffer. */
+  private static final int MIN_CAPACITY = 4 * 1024;
+
+  /* [ STATIC MEMBERS ] =========================================================================================== */
+
+  /** Use direct buffers for growable outputs. */
+  private static volatile boolean sDirect;
+  /** Total quantity of bytes allocated by buffers of all threads. */
+  private static final AtomicLong sAllocated = new AtomicLong();
+
+  /* [ MEMBERS ] ================================================================================================== */
+
+  /** Buffer of the file streams. */
+  private byte[] mStream;
+  /** Retained growable buffer, <code>null</code> when borrowed. */
+  private ByteBuffer mBuffer;
+  /** Is growable buffer borrowed. */
+  private boolean mBorrowed;
+
+  /* [ STATIC METHODS ] =========================================================================================== */
+
+  /**
+   * Get buffers of the current thread.
+   *
+   * @return buffers owned by save thread, otherwise a new not retained instance.
+   */
+  @NonNull
+  public static SaveBuffers current() {
+    final Thread thread = Thread.currentThread();
+
+    if (thread instanceof SaveDaemonsFactory.SaveThread) {
+      return ((SaveDaemonsFactory.SaveThread) thread).Buffers;
+    }
+
+    return new SaveBuffers();
+  }
+
+  /**
+   * Use direct buffers for growable outputs. Direct buffers are written to the file channels without an intermediate
+   * copy, but access to them from java code is slower. Default: false.
+   *
+   * @param direct true - allocate direct buffers, otherwise heap buffers.
+   */
+  public static void setDirect(final boolean direct) {
+    sDirect = direct;
+  }
+
+  /**
+   * Are direct buffers used for growable outputs.
+   *
+   * @return true - direct buffers, otherwise heap.
+   */
+  public static boolean isDirect() {
+    return sDirect;
+  }
+
+  /**
+   * Get total quantity of bytes allocated by buffers of all threads. Value that does not grow during the saves means
+   * that buffers are reused.
+   *
+   * @return allocated bytes.
+   */
+  public static long getAllocated() {
+    return sAllocated.get();
+  }
+
+  /* [ IMPLEMENTATION & HELPERS ] ================================================================================= */
+
+  /**
+   * Get buffer of the file streams. Buffer is shared by all file streams of the thread, only one stream may use it at
+   * a time.
+   *
+   * @return buffer of {@link #STREAM_SIZE} bytes.
+   */
+  @NonNull
+  public byte[] stream() {
+    if (null == mStream) {
+      mStream = new byte[STREAM_SIZE];
+      sAllocated.addAndGet(STREAM_SIZE);
+    }
+
+    return mStream;
+  }
+
+  /**
+   * Create buffered stream that uses {@link #stream()} buffer.
+   *
+   * @param out stream to wrap.
+   * @return buffered stream, close of it closes the wrapped stream.
+   */
+  @NonNull
+  public OutputStream buffered(@NonNull final OutputStream out) {
+    return new BufferedStream(out, stream());
+  }
+
+  /**
+   * Borrow growable output. Output should be closed after the use, that returns buffer back. Nested borrow receives
+   * a not retained buffer.
+   *
+   * @param capacity expected size of the data.
+   * @return empty output.
+   */
+  @NonNull
+  public Output output(final int capacity) {
+    ByteBuffer buffer = null;
+
+    if (!mBorrowed && null != mBuffer && mBuffer.capacity() >= capacity) {
+      buffer = mBuffer;
+      buffer.clear();
+    } else if (!mBorrowed) {
+      mBuffer = null;
+    }
+
+    if (null == buffer) {
+      buffer = allocate(Math.max(MIN_CAPACITY, capacity));
+    }
+
+    final boolean owned = !mBorrowed;
+    mBorrowed = true;
+
+    return new Output(this, buffer, owned);
+  }
+
+  /**
+   * Allocate a new buffer.
+   *
+   * @param capacity capacity of the buffer.
+   * @return buffer.
+   */
+  @NonNull
+  private static ByteBuffer allocate(final int capacity) {
+    sAllocated.addAndGet(capacity);
+
+    return sDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Return borrowed buffer back.
+   *
+   * @param buffer buffer of the output, possibly grown.
+   */
+  private void release(@NonNull final ByteBuffer buffer) {
+    mBorrowed = false;
+    mBuffer = (buffer.capacity() <= MAX_RETAINED && buffer.isDirect() == sDirect) ? buffer : null;
+  }
+
+  /* [ NESTED DECLARATIONS ] ====================================================================================== */
+
+  /** Growable output over borrowed buffer. */
+  public static final class Output extends OutputStream {
+    /** Owner of the buffer. */
+    private final SaveBuffers mOwner;
+    /** Is buffer should be returned to the owner. */
+    private final boolean mOwned;
+    /** Data, write position is the buffer position. */
+    private ByteBuffer mData;
+    /** Is output closed. */
+    private boolean mClosed;
+
+    /**
+     * Create output.
+     *
+     * @param owner owner of the buffer.
+     * @param data buffer to write.
+     * @param owned true - buffer should be returned to the owner on close.
+     */
+    private Output(@NonNull final SaveBuffers owner, @NonNull final ByteBuffer data, final boolean owned) {
+      mOwner = owner;
+      mData = data;
+      mOwned = owned;
+    }
+
+    /**
+     * Reserve space for bytes.
+     *
+     * @param size quantity of bytes to write.
+     * @return buffer to write.
+     */
+    @NonNull
+    public ByteBuffer ensure(final int size) {
+      if (mData.remaining() < size) {
+        final ByteBuffer grown = allocate(Math.max(mData.capacity() << 1, mData.position() + size));
+
+        mData.flip();
+        grown.put(mData);
+        mData = grown;
+      }
+
+      return mData;
+    }
+
+    /**
+     * Get quantity of written bytes.
+     *
+     * @return size of the data.
+     */
+    public int size() {
+      return mData.position();
+    }
+
+    /**
+     * Set write position. Used for patching of the reserved data.
+     *
+     * @param position new position, not bigger than {@link #size()}.
+     */
+    public void seek(final int position) {
+      mData.position(position);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final int b) {
+      ensure(1).put((byte) b);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(@NonNull final byte[] b, final int off, final int len) {
+      ensure(len).put(b, off, len);
+    }
+
+    /**
+     * Calculate CRC32 of the written data.
+     *
+     * @param offset start of the data.
+     * @param length length of the data.
+     * @return checksum value.
+     */
+    public long checksum(final int offset, final int length) {
+      final CRC32 crc = new CRC32();
+
+      if (mData.hasArray()) {
+        crc.update(mData.array(), mData.arrayOffset() + offset, length);
+      } else {
+        final byte[] chunk = mOwner.stream();
+        final ByteBuffer data = mData.duplicate();
+        data.position(offset);
+
+        for (int left = length; left > 0; ) {
+          final int size = Math.min(left, chunk.length);
+
+          data.get(chunk, 0, size);
+          crc.update(chunk, 0, size);
+          left -= size;
+        }
+      }
+
+      return crc.getValue();
+    }
+
+    /**
+     * Write data to the file. Direct buffers are written by file channel without copying.
+     *
+     * @param out file to write.
+     * @throws IOException on write error.
+     */
+    public void writeTo(@NonNull final FileOutputStream out) throws IOException {
+      if (mData.hasArray()) {
+        out.write(mData.array(), mData.arrayOffset(), mData.position());
+      } else {
+        final ByteBuffer data = mData.duplicate();
+        data.flip();
+
+        while (data.hasRemaining()) {
+          out.getChannel().write(data);
+        }
+      }
+    }
+
+    /**
+     * Get copy of the written data.
+     *
+     * @return copy of the written bytes.
+     */
+    @NonNull
+    public byte[] toByteArray() {
+      final byte[] result = new byte[mData.position()];
+      final ByteBuffer data = mData.duplicate();
+
+      data.flip();
+      data.get(result);
+
+      return result;
+    }
+
+    /** Return buffer back to the owner. Output should not be used after the call. */
+    @Override
+    public void close() {
+      if (!mClosed) {
+        mClosed = true;
+
+        if (mOwned) {
+          mOwner.release(mData);
+        }
+      }
+    }
+  }
+
+  /** Buffered stream over the external buffer. */
+  private static final class BufferedStream extends FilterOutputStream {
+    /** Buffer. */
+    private final byte[] mBuffer;
+    /** Quantity of buffered bytes. */
+    private int mCount;
+
+    /**
+     * Create stream.
+     *
+     * @param out stream to wrap.
+     * @param buffer buffer to use.
+     */
+    public BufferedStream(@NonNull final OutputStream out, @NonNull final byte[] buffer) {
+      super(out);
+      mBuffer = buffer;
+    }
+
+    /** Write buffered data to the wrapped stream. */
+    private void flushBuffer() throws IOException {
+      if (mCount > 0) {
+        out.write(mBuffer, 0, mCount);
+        mCount = 0;
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final int b) throws IOException {
+      if (mCount >= mBuffer.length) {
+        flushBuffer();
+      }
+
+      mBuffer[mCount++] = (byte) b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(@NonNull final byte[] b, final int off, final int len) throws IOException {
+      if (len >= mBuffer.length) {
+        flushBuffer();
+        out.write(b, off, len);
+        return;
+      }
+
+      if (len > mBuffer.length - mCount) {
+        flushBuffer();
+      }
+
+      System.arraycopy(b, off, mBuffer, mCount, len);
+      mCount += len;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() throws IOException {
+      flushBuffer();
+      out.flush();
+    }
+  }
+}
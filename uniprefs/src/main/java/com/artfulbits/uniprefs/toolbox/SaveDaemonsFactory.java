@@ -5,7 +5,10 @@ import android.support.annotation.NonNull;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
-/** Create thread with low priority, daemon flag and specific easy recognizable name. */
+/**
+ * Create thread with low priority, daemon flag and specific easy recognizable name. Each thread owns reusable
+ * {@link SaveBuffers}.
+ */
 public final class SaveDaemonsFactory implements ThreadFactory {
   /** Single instance of class. */
   public static final ThreadFactory Instance = new SaveDaemonsFactory();
@@ -22,11 +25,27 @@ public final class SaveDaemonsFactory implements ThreadFactory {
   @NonNull
   public Thread newThread(@NonNull final Runnable r) {
     final int index = _counter.getAndIncrement();
-    final Thread th = new Thread(r, "uniprefs-thread-pool-" + index);
+    final Thread th = new SaveThread(r, "uniprefs-thread-pool-" + index);
 
     // set default priority to minimum, to economy CPU
     th.setPriority(Thread.MIN_PRIORITY);
 
     return th;
   }
+
+  /** Save thread with own I/O buffers. */
+  /* package */ static final class SaveThread extends Thread {
+    /** Reusable buffers of the thread. */
+    public final SaveBuffers Buffers = new SaveBuffers();
+
+    /**
+     * Create thread.
+     *
+     * @param r runnable to execute.
+     * @param name name of the thread.
+     */
+    public SaveThread(@NonNull final Runnable r, @NonNull final String name) {
+      super(r, name);
+    }
+  }
 }
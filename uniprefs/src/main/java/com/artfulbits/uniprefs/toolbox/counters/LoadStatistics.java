@@ -0,0 +1,33 @@
+package com.artfulbits.uniprefs.toolbox.counters;
+
+/** Loading statistics of one preferences file. */
+public final class LoadStatistics {
+  /** Absolute path of the loaded file. */
+  public final String Path;
+  /** Quantity of bytes read from the file. */
+  public long Bytes;
+  /** Quantity of loaded values. */
+  public int Values;
+  /** Loading time in nanoseconds: read and de-serialization. */
+  public long Duration;
+  /** Is loading done without errors. */
+  public boolean Success;
+  /** Is data recovered from backup file, main file is missing or corrupted. */
+  public boolean Recovered;
+
+  /**
+   * Create statistics of the file.
+   *
+   * @param path absolute path of the file.
+   */
+  public LoadStatistics(final String path) {
+    Path = path;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Path + ", bytes: " + Bytes + ", values: " + Values + ", ms: " + (Duration / 1000000.0) +
+        (Recovered ? ", RECOVERED" : "") + (Success ? "" : ", FAILED");
+  }
+}
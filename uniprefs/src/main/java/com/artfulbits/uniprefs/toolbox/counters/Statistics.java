@@ -1,6 +1,7 @@
 package com.artfulbits.uniprefs.toolbox.counters;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Statistics collecting class. */
 public final class Statistics {
@@ -12,10 +13,61 @@ public final class Statistics {
   public final AtomicInteger SkippedSaves = new AtomicInteger();
   /** Quantity of set into queue save operations. */
   public final AtomicInteger SetSaves = new AtomicInteger();
+  /** Quantity of saves executed once more, because data was changed during the running save. */
+  public final AtomicInteger RerunSaves = new AtomicInteger();
   /** Quantity of executed memory commits. */
   public final AtomicInteger MemoryCommits = new AtomicInteger();
   /** Quantity of executed apply(). */
   public final AtomicInteger Applies = new AtomicInteger();
   /** Quantity of executed commit(). */
   public final AtomicInteger Commits = new AtomicInteger();
+  /** Quantity of loaded from disk files. */
+  public final AtomicInteger Loads = new AtomicInteger();
+  /** Quantity of bytes read from disk by loading operations. */
+  public final AtomicLong LoadedBytes = new AtomicLong();
+  /** Quantity of loads recovered from backup file: main file missing or corrupted. */
+  public final AtomicInteger Recoveries = new AtomicInteger();
+  /** Quantity of removed temp files left by interrupted saves. */
+  public final AtomicInteger SweptTemps = new AtomicInteger();
+  /** Quantity of physical writes to disk: file rewrites and log appends. */
+  public final AtomicInteger Writes = new AtomicInteger();
+  /** Quantity of memory commits (apply/commit) absorbed by physical writes. */
+  public final AtomicLong AbsorbedEdits = new AtomicLong();
+  /** Maximum quantity of memory commits absorbed by one physical write. */
+  public final AtomicInteger MaxAbsorbedEdits = new AtomicInteger();
+  /** Quantity of bytes passed to compression. */
+  public final AtomicLong CompressionInput = new AtomicLong();
+  /** Quantity of bytes produced by compression. */
+  public final AtomicLong CompressionOutput = new AtomicLong();
+  /** CPU time of compression, nanos. */
+  public final AtomicLong CompressionTime = new AtomicLong();
+  /** CPU time of decompression, nanos. */
+  public final AtomicLong DecompressionTime = new AtomicLong();
+
+  /**
+   * Register done physical write.
+   *
+   * @param edits quantity of memory commits absorbed by the write.
+   */
+  public void written(final int edits) {
+    Writes.incrementAndGet();
+    AbsorbedEdits.addAndGet(edits);
+
+    for (int max = MaxAbsorbedEdits.get(); edits > max; max = MaxAbsorbedEdits.get()) {
+      if (MaxAbsorbedEdits.compareAndSet(max, edits)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Get compression ratio of all compressed saves.
+   *
+   * @return ratio of original size to compressed size, 1 if nothing compressed.
+   */
+  public double getCompressionRatio() {
+    final long output = CompressionOutput.get();
+
+    return (0 == output) ? 1.0 : (double) CompressionInput.get() / output;
+  }
 }
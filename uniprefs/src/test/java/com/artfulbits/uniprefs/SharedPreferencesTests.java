@@ -13,6 +13,14 @@ import com.artfulbits.junit.NamedDaemons;
 import com.artfulbits.junit.PerformanceTests;
 import com.artfulbits.junit.Sampling;
 import com.artfulbits.unipref.BuildConfig;
+import com.artfulbits.uniprefs.storages.KeyHandle;
+import com.artfulbits.uniprefs.storages.TypedStorage;
+import com.artfulbits.uniprefs.toolbox.BinarySerialization;
+import com.artfulbits.uniprefs.toolbox.CompressedSerialization;
+import com.artfulbits.uniprefs.toolbox.SaveBuffers;
+import com.artfulbits.uniprefs.toolbox.counters.LoadStatistics;
+import com.artfulbits.uniprefs.toolbox.counters.Statistics;
+import com.sun.management.ThreadMXBean;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -23,17 +31,44 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import static org.junit.Assert.*;
 
@@ -55,6 +90,25 @@ public class SharedPreferencesTests extends PerformanceTests {
   public static final String UNIT_TESTS_PREFS = "uniprefs.data.unit.tests.prefs";
   public static final String UNIT_TESTS_DB = "uniprefs.data.unit.tests";
 
+  /** Allocation counters of the threads, <code>null</code> if JVM does not expose them. */
+  private static final ThreadMXBean ALLOCATIONS = allocationCounters();
+
+  /** The calling thread. */
+  private static final ThreadFilter CURRENT_THREAD = new ThreadFilter() {
+    @Override
+    public boolean accept(@NonNull final Thread thread) {
+      return Thread.currentThread() == thread;
+    }
+  };
+
+  /** Threads of the default save thread pool. */
+  private static final ThreadFilter SAVE_THREADS = new ThreadFilter() {
+    @Override
+    public boolean accept(@NonNull final Thread thread) {
+      return thread.getName().startsWith("uniprefs-thread-pool-");
+    }
+  };
+
 	/* [ MEMBERS ] =================================================================================================== */
 
   private final Set<String> TestSetValues = new HashSet<>();
@@ -424,104 +478,2028 @@ public class SharedPreferencesTests extends PerformanceTests {
     assertEquals(ExtraLongString, data);
   }
 
-  @Override
-  public void warmUp() {
-    if (null == TestSetValues || TestSetValues.isEmpty()) {
-      //			CountryDao dao = new CountryDao(getContext());
-      //			dao.init();
-      //
-      //			extracted = dao.getAll();
+  @LargeTest
+  public void test_15_PreferencesUnified_ReadScaling() {
+    final PreferencesUnified prefs = getPreferencesUnified();
 
-      TestSetValues.add("set string #1");
-      TestSetValues.add("set string #2");
-      TestSetValues.add("set string #3");
-      TestSetValues.add("set string #4");
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < ITERATIONS; i++) {
+      edit.putInt("i" + i, i);
+    }
+    edit.commit();
+    meter().skip("initial feeling");
 
-      final StringBuilder dumpString = new StringBuilder(0xffff * 4);
+    for (int readers = 1; readers <= 16; readers *= 2) {
+      measureReads(prefs, readers, true);
+      meter().beat("locked reads, readers: " + readers + ", reads per reader: " + ITERATIONS_XL);
 
-      while (dumpString.length() < 0xffff * 3) {
-        //                 0         0         0         0         0         0
-        dumpString.append("This is dummy string for testing the chunks logic .");
+      measureReads(prefs, readers, false);
+      meter().beat("lock-free reads, readers: " + readers + ", reads per reader: " + ITERATIONS_XL);
+    }
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  /**
+   * Run N reader threads and one writer thread in parallel, wait for the readers completion.
+   *
+   * @param prefs instance of the preferences to use.
+   * @param readers number of reader threads.
+   * @param locked true - emulate readers that synchronize on storage, otherwise use public lock-free getters.
+   */
+  private void measureReads(final PreferencesUnified prefs, final int readers, final boolean locked) {
+    final AtomicInteger counter = new AtomicInteger(readers);
+    final AtomicInteger stop = new AtomicInteger();
+    // sum of the read values, prevents dead code elimination of the reads
+    final AtomicInteger checksum = new AtomicInteger();
+
+    final Runnable reader = new Runnable() {
+      @Override
+      public void run() {
+        int sum = 0;
+
+        for (int i = 0; i < ITERATIONS_XL; i++) {
+          final String key = "i" + (i % ITERATIONS);
+
+          if (locked) {
+            synchronized (prefs.mStorage.ModifySync) {
+              final Map<String, Object> objects = prefs.mStorage.Data.asMap();
+
+              if (objects.containsKey(key)) {
+                sum += ((Number) objects.get(key)).intValue();
+              }
+            }
+          } else {
+            sum += prefs.getInt(key, 0);
+          }
+        }
+
+        checksum.addAndGet(sum);
+        counter.decrementAndGet();
       }
+    };
 
-      ExtraLongString = dumpString.toString();
+    final Runnable writer = new Runnable() {
+      @Override
+      public void run() {
+        int i = 0;
+
+        while (0 == stop.get()) {
+          prefs.edit().putInt("i" + (i++ % ITERATIONS), i).apply();
+        }
+      }
+    };
+
+    final ExecutorService pool = Executors.newCachedThreadPool(NamedDaemons.Instance);
+    pool.execute(writer);
+
+    for (int i = 0; i < readers; i++) {
+      pool.execute(reader);
+    }
+
+    while (counter.get() > 0) {
+      Thread.yield();
     }
+
+    stop.set(1);
+    pool.shutdown();
   }
 
-	/* [ NESTED DECLARATIONS ] ======================================================================================= */
+  @LargeTest
+  public void test_16_PreferencesUnified_StressTest_Apply_Allocations() {
+    final PreferencesUnified prefs = getPreferencesUnified();
+    final String[] keys = new String[ITERATIONS];
 
-  /** Serialize to/from JSON with use of standard {@link org.json.JSONObject}. */
-  private static final class OrgJsonSerializer
-      implements PreferencesUnified.Serialization {
-    /** Singleton instance. */
-    public static final PreferencesUnified.Serialization Instance = new OrgJsonSerializer();
-    /** Default encoding. */
-    private final static Charset UTF8 = Charset.forName("UTF-8");
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < ITERATIONS; i++) {
+      edit.putInt(keys[i] = "i" + i, i);
+    }
+    edit.commit();
+    meter().skip("initial feeling");
 
-    private OrgJsonSerializer() {
-      // do nothing
+    final long regular = measureApplyAllocations(prefs, keys, false);
+    meter().beat("regular editors, bytes per apply: " + regular);
+
+    final long recycled = measureApplyAllocations(prefs, keys, true);
+    meter().beat("recycled editors, bytes per apply: " + recycled);
+
+    prefs.setRecycleEditors(false);
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+
+    // JVM does not expose allocation counters, nothing to verify
+    if (regular < 0 || recycled < 0) {
+      return;
     }
 
-    @Override
-    public byte[] serialize(final Map<String, ?> data) {
-      final String blob = new org.json.JSONObject(data).toString();
+    // pending save request is never duplicated, steady state apply allocates nothing
+    assertTrue("recycled editors should allocate less: " + recycled + " vs " + regular, recycled < regular);
+    assertEquals("allocations per apply", 0, recycled);
+  }
 
-      return blob.getBytes(UTF8);
+  /**
+   * Run edit/putInt/apply loop and calculate average quantity of bytes allocated by the calling thread. Save executor
+   * is paused during the measurement: the only save request is held and done after the loop.
+   *
+   * @param prefs instance of the preferences to use.
+   * @param keys pre-allocated keys, all of them exist in preferences.
+   * @param recycle true - recycle editors, otherwise create a new editor on each apply.
+   * @return average bytes per apply call, or -1 if allocation counters are not supported by JVM.
+   */
+  private long measureApplyAllocations(final PreferencesUnified prefs, final String[] keys, final boolean recycle) {
+    if (null == ALLOCATIONS) {
+      return -1;
     }
 
-    @Override
-    public Map<String, ?> deserialize(final byte[] data) {
-      if (null != data) {
-        try {
-          final String json = new String(data, UTF8);
-          final JSONObject extracted = (JSONObject) new JSONTokener(json).nextValue();
+    final AtomicReference<Runnable> held = new AtomicReference<>();
 
-          return toMap(extracted);
-        } catch (final Throwable ignored) {
-        }
+    prefs.setRecycleEditors(recycle);
+    PreferencesUnified.setSaveExecutor(new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        held.set(command);
+      }
+    });
+
+    try {
+      // warm up, editor pool and actions pool populated
+      for (int i = 0; i < ITERATIONS; i++) {
+        prefs.edit().putInt(keys[i], i).apply();
+      }
+
+      final long before = allocatedBytes(CURRENT_THREAD);
+
+      for (int i = 0; i < ITERATIONS_L; i++) {
+        prefs.edit().putInt(keys[i % ITERATIONS], i).apply();
+      }
+
+      final long after = allocatedBytes(CURRENT_THREAD);
+
+      return (after - before) / ITERATIONS_L;
+    } finally {
+      PreferencesUnified.setSaveExecutor(null);
+
+      // release the held save request
+      final Runnable request = held.getAndSet(null);
+
+      if (null != request) {
+        request.run();
+      }
+    }
+  }
+
+  /**
+   * Calculate quantity of bytes allocated by the live threads.
+   *
+   * @param filter threads to count.
+   * @return allocated bytes, or -1 if allocation counters are not supported by JVM.
+   */
+  private static long allocatedBytes(@NonNull final ThreadFilter filter) {
+    if (null == ALLOCATIONS) {
+      return -1;
+    }
+
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (null != root.getParent()) {
+      root = root.getParent();
+    }
+
+    // small array, measured loops are not affected by it
+    final Thread[] threads = new Thread[root.activeCount() * 2 + 1];
+    final int count = root.enumerate(threads, true);
+    long total = 0;
+
+    for (int i = 0; i < count; i++) {
+      if (filter.accept(threads[i])) {
+        total += Math.max(0, ALLOCATIONS.getThreadAllocatedBytes(threads[i].getId()));
       }
+    }
 
+    return total;
+  }
+
+  /**
+   * Get allocation counters of the threads.
+   *
+   * @return instance of the counters, or <code>null</code> if JVM does not expose them.
+   */
+  private static ThreadMXBean allocationCounters() {
+    try {
+      return ManagementFactory.getPlatformMXBean(ThreadMXBean.class);
+    } catch (final IllegalArgumentException ignored) {
       return null;
     }
+  }
 
-    @NonNull
-    public static Map<String, Object> toMap(@NonNull final JSONObject object) throws JSONException {
-      final Map<String, Object> map = new HashMap<>();
+  /** Filter of the threads for allocation counters. */
+  private interface ThreadFilter {
+    /**
+     * Is thread counted.
+     *
+     * @param thread thread to check.
+     * @return true - count allocations of the thread, otherwise false.
+     */
+    boolean accept(@NonNull Thread thread);
+  }
 
-      final Iterator<String> keysItr = object.keys();
-      while (keysItr.hasNext()) {
-        final String key = keysItr.next();
-        Object value = object.get(key);
+  @SmallTest
+  public void test_17_PreferencesUnified_Snapshot() {
+    final PreferencesUnified prefs = getPreferencesUnified();
+    prefs.edit().putInt("a", 0).putInt("b", 0).commit();
 
-        if (value instanceof JSONArray) {
-          value = toList((JSONArray) value);
-        } else if (value instanceof JSONObject) {
-          value = toMap((JSONObject) value);
-        }
+    final PreferencesSnapshot first = prefs.snapshot();
+    prefs.edit().putInt("a", 1).putInt("b", 1).commit();
 
-        map.put(key, value);
+    assertEquals(0, first.getInt("a", -1));
+    assertEquals(1, prefs.getInt("a", -1));
+    assertTrue(prefs.snapshot().getVersion() > first.getVersion());
+
+    try {
+      first.edit();
+      fail("snapshot should be read-only");
+    } catch (final UnsupportedOperationException ignored) {
+      // expected
+    }
+    meter().beat("snapshot isolation verified");
+
+    // writer keeps both keys equal, each snapshot should see pair of equal values
+    final AtomicInteger stop = new AtomicInteger();
+    final ExecutorService pool = Executors.newSingleThreadExecutor(NamedDaemons.Instance);
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        int i = 0;
+
+        while (0 == stop.get()) {
+          i++;
+          prefs.edit().putInt("a", i).putInt("b", i).apply();
+        }
       }
+    });
 
-      return map;
+    meter().loop("run " + ITERATIONS_L + " snapshots.");
+    for (int i = 0; i < ITERATIONS_L; i++) {
+      final PreferencesSnapshot snapshot = prefs.snapshot();
+      final int version = snapshot.getVersion();
+
+      assertEquals(snapshot.getInt("a", -1), snapshot.getInt("b", -2));
+      assertEquals(snapshot.getAll().get("a"), snapshot.getAll().get("b"));
+      assertEquals(version, snapshot.getVersion());
+      meter().recap();
     }
+    meter().unloop("snapshots done.");
 
-    @NonNull
-    public static List<Object> toList(@NonNull final JSONArray array) throws JSONException {
-      final List<Object> list = new ArrayList<>();
+    stop.set(1);
+    pool.shutdown();
 
-      for (int i = 0, len = array.length(); i < len; i++) {
-        Object value = array.get(i);
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
 
-        if (value instanceof JSONArray) {
-          value = toList((JSONArray) value);
-        } else if (value instanceof JSONObject) {
-          value = toMap((JSONObject) value);
+  @LargeTest
+  public void test_18_PreferencesUnified_KeyHandles() {
+    final PreferencesUnified prefs = getPreferencesUnified();
+    final KeyHandle[] handles = new KeyHandle[32];
+    final String[] keys = new String[handles.length];
+
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < handles.length; i++) {
+      edit.putInt(keys[i] = "hot" + i, i);
+    }
+    edit.commit();
+
+    for (int i = 0; i < handles.length; i++) {
+      handles[i] = prefs.handle(keys[i]);
+    }
+    meter().skip("initial feeling");
+
+    int sum = 0;
+    for (int i = 0; i < ITERATIONS_XL; i++) {
+      sum += prefs.getInt(keys[i % keys.length], 0);
+    }
+    meter().beat("string key reads: " + ITERATIONS_XL + ", checksum: " + sum);
+
+    sum = 0;
+    for (int i = 0; i < ITERATIONS_XL; i++) {
+      sum += prefs.getInt(handles[i % handles.length], 0);
+    }
+    meter().beat("key handle reads: " + ITERATIONS_XL + ", checksum: " + sum);
+
+    // handles should survive clear and re-bind to the new slots
+    prefs.edit().clear().commit();
+    assertFalse(prefs.contains(handles[5]));
+    assertEquals(-1, prefs.getInt(handles[5], -1));
+
+    prefs.edit().putString("other", SOMETHING_TO_STORE).commit();
+    prefs.edit().putInt(handles[5], 55).putBoolean(handles[6], true).commit();
+    assertEquals(55, prefs.getInt(handles[5], -1));
+    assertEquals(55, prefs.getInt(keys[5], -1));
+    assertTrue(prefs.getBoolean(keys[6], false));
+    assertTrue(prefs.snapshot().getBoolean(handles[6], false));
+
+    // in-place update by handle
+    prefs.edit().putInt(handles[5], 56).commit();
+    assertEquals(56, prefs.getInt(handles[5], -1));
+    meter().beat("re-bind verified");
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_19_PreferencesUnified_ParallelOpen() throws Exception {
+    final int files = 25;
+    final int threads = 8;
+
+    for (int i = 0; i < files; i++) {
+      final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + i,
+          OrgJsonSerializer.Instance);
+      prefs.edit().putInt("file", i).putString("value", SOMETHING_TO_STORE).commit();
+    }
+    meter().skip("files created");
+
+    // drop memory cache, force loading from disk
+    PreferencesUnified.gc();
+
+    final PreferencesUnified[][] opened = new PreferencesUnified[threads][files];
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, NamedDaemons.Instance);
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+
+            // each thread opens files in own order
+            for (int i = 0; i < files; i++) {
+              final int file = (i + thread * 3) % files;
+
+              opened[thread][file] = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + file,
+                  OrgJsonSerializer.Instance);
+            }
+          } catch (final InterruptedException ignored) {
+            // do nothing
+          } finally {
+            done.countDown();
+          }
         }
+      });
+    }
 
-        list.add(value);
+    meter().skip("threads ready");
+    start.countDown();
+    done.await();
+    meter().beat("parallel open, threads: " + threads + ", files: " + files);
+    pool.shutdown();
+
+    for (int i = 0; i < files; i++) {
+      final PreferencesUnified first = opened[0][i];
+      assertEquals(i, first.getInt("file", -1));
+
+      for (int t = 1; t < threads; t++) {
+        assertSame("same file should share storage", first.mStorage, opened[t][i].mStorage);
       }
 
-      return list;
+      first.edit().clear().commit();
+    }
+    meter().skip("cleanup");
+  }
+
+  @SmallTest
+  public void test_20_PreferencesUnified_OpenAsync() throws Exception {
+    final PreferencesUnified created = getPreferencesUnified();
+    final Editor edit = created.edit();
+    for (int i = 0; i < ITERATIONS; i++) {
+      edit.putString("s" + i, SOMETHING_TO_STORE);
+    }
+    edit.putInt("marker", 42).commit();
+    meter().skip("file created");
+
+    PreferencesUnified.gc();
+    meter().skip("memory cache dropped");
+
+    final ExecutorService pool = Executors.newSingleThreadExecutor(NamedDaemons.Instance);
+    final Future<PreferencesUnified> future = PreferencesUnified.openAsync(getContext(), UNIT_TESTS_PREFS,
+        OrgJsonSerializer.Instance, pool);
+    meter().beat("openAsync returned");
+
+    final PreferencesUnified async = future.get();
+    meter().beat("async data loaded");
+    assertEquals(42, async.getInt("marker", -1));
+    pool.shutdown();
+
+    PreferencesUnified.gc();
+
+    final PreferencesUnified lazy = PreferencesUnified.openLazy(getContext(), UNIT_TESTS_PREFS,
+        OrgJsonSerializer.Instance);
+    meter().beat("openLazy returned");
+
+    assertEquals(42, lazy.getInt("marker", -1));
+    meter().beat("lazy data loaded by first read");
+
+    lazy.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_21_PreferencesUnified_Preload() throws Exception {
+    final int files = 25;
+    final Map<String, PreferencesUnified.Serialization> toLoad = new HashMap<>();
+    final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+    // remember threads of the loading
+    final PreferencesUnified.Serialization tracking = new PreferencesUnified.Serialization() {
+      @Override
+      public byte[] serialize(final Map<String, ?> data) {
+        return OrgJsonSerializer.Instance.serialize(data);
+      }
+
+      @Override
+      public Map<String, ?> deserialize(final byte[] data) {
+        threads.add(Thread.currentThread().getName());
+
+        return OrgJsonSerializer.Instance.deserialize(data);
+      }
+    };
+
+    for (int i = 0; i < files; i++) {
+      final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + i,
+          OrgJsonSerializer.Instance);
+
+      final Editor edit = prefs.edit();
+      for (int j = 0; j < ITERATIONS; j++) {
+        edit.putString("s" + j, SOMETHING_TO_STORE);
+      }
+      edit.putInt("file", i).commit();
+
+      toLoad.put(UNIT_TESTS_PREFS + i, tracking);
+    }
+    meter().skip("files created");
+
+    PreferencesUnified.gc();
+
+    final Future<List<LoadStatistics>> future = PreferencesUnified.preload(getContext(), toLoad);
+    meter().beat("preload started, files: " + files);
+
+    final List<LoadStatistics> stats = future.get();
+    meter().beat("preload done");
+
+    assertEquals(files, stats.size());
+    for (LoadStatistics stat : stats) {
+      assertTrue(stat.Success);
+      assertTrue(stat.Bytes > 0);
+      Log.i(TAG, stat.toString());
+    }
+
+    // files are loaded by dedicated threads, not by the save thread pool
+    for (final String name : threads) {
+      assertTrue(name, name.startsWith("uniprefs-loader-"));
+    }
+
+    // nothing to load, result is ready immediately
+    assertTrue(PreferencesUnified.preload(getContext(),
+        Collections.<String, PreferencesUnified.Serialization>emptyMap()).isDone());
+
+    // data is in memory pool, constructors do not touch the disk
+    meter().loop("open " + files + " preloaded files");
+    for (int i = 0; i < files; i++) {
+      final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + i,
+          OrgJsonSerializer.Instance);
+      assertEquals(i, prefs.getInt("file", -1));
+      meter().recap();
+    }
+    meter().unloop("preloaded files opened");
+
+    for (int i = 0; i < files; i++) {
+      new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + i, OrgJsonSerializer.Instance).edit().clear().commit();
+    }
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_22_PreferencesUnified_MappedLoad() throws Exception {
+    final int[] sizes = {1024, 1024 * 1024, 20 * 1024 * 1024};
+    final File directory = new File(getContext().getApplicationInfo().dataDir + "/shared_prefs");
+    directory.mkdirs();
+
+    for (final int size : sizes) {
+      final String name = UNIT_TESTS_PREFS + ".blob." + size;
+      final File file = new File(directory, name);
+      final byte[] blob = new byte[size];
+      new Random(size).nextBytes(blob);
+
+      final FileOutputStream os = new FileOutputStream(file);
+      os.write(blob);
+      os.close();
+      meter().skip("file created, bytes: " + size);
+
+      PreferencesUnified.gc();
+      final PreferencesUnified heap = new PreferencesUnified(getContext(), name, ChecksumSerializer.Instance);
+      meter().beat("byte[] load, bytes: " + size);
+
+      PreferencesUnified.gc();
+      final PreferencesUnified mapped = new PreferencesUnified(getContext(), name, ChecksumBufferSerializer.Instance);
+      meter().beat("mapped load, bytes: " + size);
+
+      assertEquals(heap.getLong(ChecksumSerializer.KEY, -1), mapped.getLong(ChecksumSerializer.KEY, -2));
+
+      PreferencesUnified.gc();
+      assertTrue(file.delete());
+    }
+  }
+
+  @LargeTest
+  public void test_23_PreferencesUnified_StreamingSerialization() {
+    final String name = UNIT_TESTS_PREFS + ".stream";
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), name, OrgJsonStreamingSerializer.Instance);
+
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < ITERATIONS_L; i++) {
+      edit.putString("s" + i, SOMETHING_TO_STORE);
+    }
+    edit.commit();
+    meter().beat("streaming save, values: " + ITERATIONS_L);
+
+    PreferencesUnified.gc();
+    final PreferencesUnified loaded = new PreferencesUnified(getContext(), name, OrgJsonStreamingSerializer.Instance);
+    meter().beat("streaming load");
+    assertEquals(ITERATIONS_L, loaded.getAll().size());
+
+    // format is the same, file is readable by the byte[] based serializer
+    PreferencesUnified.gc();
+    final PreferencesUnified compatible = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    meter().beat("byte[] load");
+    assertEquals(SOMETHING_TO_STORE, compatible.getString("s0", null));
+
+    compatible.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_24_PreferencesUnified_LogStructured() throws Exception {
+    final String name = UNIT_TESTS_PREFS + ".journal";
+    final File file = new File(getContext().getApplicationInfo().dataDir + "/shared_prefs", name);
+    final File log = new File(file.getPath() + ".log");
+
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    prefs.setLogStructured(true);
+
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < ITERATIONS_L; i++) {
+      edit.putString("s" + i, SOMETHING_TO_STORE);
+    }
+    edit.commit();
+    meter().beat("full save, values: " + ITERATIONS_L);
+    assertFalse(log.exists());
+
+    // small changes appended to the log, file is not rewritten
+    final long length = file.length();
+    meter().loop("run " + ITERATIONS + " log-structured commits.");
+    for (int i = 0; i < ITERATIONS; i++) {
+      prefs.edit().putInt("counter", i).commit();
+      meter().recap();
+    }
+    meter().unloop("log-structured commits");
+    assertEquals(length, file.length());
+    assertTrue(log.exists());
+
+    prefs.edit().remove("s0").commit();
+
+    PreferencesUnified.gc();
+    final PreferencesUnified loaded = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    meter().beat("load with log replay");
+    assertEquals(ITERATIONS - 1, loaded.getInt("counter", -1));
+    assertFalse(loaded.contains("s0"));
+    assertEquals(SOMETHING_TO_STORE, loaded.getString("s1", null));
+
+    // log bigger than the file is compacted into the file
+    loaded.setLogStructured(true);
+    loaded.edit().putInt("counter", 0).commit();
+    for (int i = 0; i < ITERATIONS_L; i++) {
+      loaded.edit().putString("s" + i, SOMETHING_TO_STORE + i).commit();
+    }
+    meter().skip("log compaction");
+    assertTrue(log.length() <= Math.max(file.length(), 32 * 1024));
+
+    PreferencesUnified.gc();
+    final PreferencesUnified compacted = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    assertEquals(SOMETHING_TO_STORE + (ITERATIONS_L - 1), compacted.getString("s" + (ITERATIONS_L - 1), null));
+
+    // corrupted length of the second batch stops the replay, first batch is kept
+    compacted.edit().putInt("tail", 0).commit();
+    assertFalse(log.exists());
+    compacted.setLogStructured(true);
+    compacted.edit().putInt("tail", 1).commit();
+    compacted.edit().putInt("tail", 2).commit();
+
+    final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    try {
+      // skip log header and the first batch: length, checksum and payload
+      final int header = 4 + 4 + 8 + 8;
+      raf.seek(header);
+      raf.seek(header + 4 + 8 + raf.readInt());
+      raf.writeInt(Integer.MAX_VALUE);
+    } finally {
+      raf.close();
+    }
+
+    assertTrue(Journal.replay(log, file, new TypedStorage()));
+
+    PreferencesUnified.gc();
+    final PreferencesUnified corrupted = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    assertEquals(1, corrupted.getInt("tail", -1));
+    meter().skip("corrupted batch length");
+
+    // batch with valid checksum and not decoded record is not applied partially
+    corrupted.setLogStructured(true);
+    corrupted.edit().putInt("tail", 2).commit();
+    corrupted.edit().putInt("tail", 3).commit();
+    assertTrue(log.exists());
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream records = new DataOutputStream(bytes);
+    records.writeByte(2); // remove record
+    records.writeUTF("tail");
+    records.writeByte(0x7f); // unknown record
+    records.close();
+
+    final byte[] payload = bytes.toByteArray();
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    final RandomAccessFile batch = new RandomAccessFile(log, "rw");
+    try {
+      final int header = 4 + 4 + 8 + 8;
+      batch.seek(header);
+      batch.writeInt(payload.length);
+      batch.writeLong(crc.getValue());
+      batch.write(payload);
+      batch.setLength(batch.getFilePointer());
+    } finally {
+      batch.close();
+    }
+
+    PreferencesUnified.gc();
+    final PreferencesUnified undecoded = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    assertEquals(2, undecoded.getInt("tail", -1));
+    meter().skip("not decoded batch");
+
+    undecoded.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @SmallTest
+  public void test_25_PreferencesUnified_DeltaSerialization() {
+    final DeltaSerializer serializer = new DeltaSerializer();
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".delta", serializer);
+
+    prefs.edit().putInt("a", 1).putInt("b", 2).putString("c", SOMETHING_TO_STORE).commit();
+    meter().beat("first save");
+    assertTrue(serializer.Full);
+
+    prefs.edit().putInt("a", 10).remove("b").commit();
+    meter().beat("delta save");
+    assertFalse(serializer.Full);
+    assertEquals(Collections.singleton("a"), serializer.Changed);
+    assertEquals(Collections.singleton("b"), serializer.Removed);
+
+    // failed save keeps changes, rescheduled save receives them
+    serializer.Failures.set(1);
+    prefs.edit().putInt("d", 4).commit();
+    meter().beat("failed and rescheduled delta save");
+    assertEquals(0, serializer.Failures.get());
+    assertEquals(Collections.singleton("d"), serializer.Changed);
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+    assertEquals(new HashSet<>(Arrays.asList("a", "c", "d")), serializer.Removed);
+    assertTrue(serializer.Changed.isEmpty());
+  }
+
+  @LargeTest
+  public void test_26_PreferencesUnified_SaveUnderContinuousWrites() throws Exception {
+    final int threads = 4;
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".writers",
+        OrgJsonSerializer.Instance);
+
+    final CountDownLatch done = new CountDownLatch(threads);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, NamedDaemons.Instance);
+    final int rescheduled = PreferencesUnified.sStats.RescheduledSaves.get();
+    final int saves = PreferencesUnified.sStats.DoneSaves.get();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          // each apply changes data during serialization of the previous save
+          for (int i = 0; i < ITERATIONS_L; i++) {
+            prefs.edit().putString(thread + "." + i, SOMETHING_TO_STORE).apply();
+          }
+
+          done.countDown();
+        }
+      });
+    }
+
+    done.await();
+    meter().beat("continuous writers, threads: " + threads + ", applies: " + threads * ITERATIONS_L);
+    pool.shutdown();
+
+    // wait for the last save
+    final long deadline = System.currentTimeMillis() + Sampling.SECONDS_10;
+    while (prefs.getPersistedVersion() != prefs.getVersion() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    meter().skip("all changes persisted");
+
+    Log.i(TAG, "saves: " + (PreferencesUnified.sStats.DoneSaves.get() - saves) + ", rescheduled: " +
+        (PreferencesUnified.sStats.RescheduledSaves.get() - rescheduled));
+    assertEquals(prefs.getVersion(), prefs.getPersistedVersion());
+    assertEquals("saves of consistent snapshots are never rescheduled",
+        rescheduled, PreferencesUnified.sStats.RescheduledSaves.get());
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_27_PreferencesUnified_WriteCoalescing() throws Exception {
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".coalescing",
+        OrgJsonSerializer.Instance);
+    prefs.edit().putString("value", SOMETHING_TO_STORE).commit();
+
+    for (final long delay : new long[]{0, 50}) {
+      prefs.setWriteCoalescing(delay, 10 * delay, TimeUnit.MILLISECONDS, ITERATIONS_L);
+
+      final int writes = PreferencesUnified.sStats.Writes.get();
+      final long absorbed = PreferencesUnified.sStats.AbsorbedEdits.get();
+
+      // burst of applies spread over a few milliseconds
+      for (int i = 0; i < ITERATIONS; i++) {
+        prefs.edit().putInt("counter", i).apply();
+
+        if (0 == i % 10) {
+          Thread.sleep(1);
+        }
+      }
+      meter().beat("burst of applies, window ms: " + delay);
+
+      final long deadline = System.currentTimeMillis() + Sampling.SECONDS_10;
+      while (prefs.getPersistedVersion() != prefs.getVersion() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      meter().skip("all changes persisted");
+      assertEquals(prefs.getVersion(), prefs.getPersistedVersion());
+
+      final int done = PreferencesUnified.sStats.Writes.get() - writes;
+      Log.i(TAG, "window ms: " + delay + ", writes: " + done + ", applies per write: " +
+          (PreferencesUnified.sStats.AbsorbedEdits.get() - absorbed) / Math.max(1, done));
+
+      if (delay > 0) {
+        assertTrue("burst should be merged into few writes: " + done, done <= 3);
+      }
+    }
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_28_PreferencesUnified_Durability() {
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".durability",
+        OrgJsonSerializer.Instance);
+    final String[] names = {"NONE", "DATA", "FULL"};
+    final int[] modes = {PreferencesUnified.DURABILITY_NONE, PreferencesUnified.DURABILITY_DATA,
+        PreferencesUnified.DURABILITY_FULL};
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      prefs.edit().putString("s" + i, SOMETHING_TO_STORE).apply();
+    }
+    prefs.edit().commit();
+    meter().skip("values created");
+
+    for (int m = 0; m < modes.length; m++) {
+      prefs.setDurability(modes[m]);
+      assertEquals(modes[m], prefs.getDurability());
+
+      meter().loop("run " + ITERATIONS + " commits, durability: " + names[m]);
+      for (int i = 0; i < ITERATIONS; i++) {
+        prefs.edit().putInt("counter", i).commit();
+        meter().recap();
+      }
+      meter().unloop("durability: " + names[m]);
+    }
+
+    prefs.setDurability(PreferencesUnified.DURABILITY_NONE);
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_29_BinarySerialization_VsJson() {
+    final PreferencesUnified.Serialization[] serializers = {OrgJsonSerializer.Instance, BinarySerialization.Instance};
+    final int[] sizes = {Sampling.ITERATIONS_M, Sampling.ITERATIONS_XL, Sampling.ITERATIONS_XXL};
+
+    for (final int size : sizes) {
+      final Map<String, Object> data = new HashMap<>();
+      for (int i = 0; i < size; i++) {
+        switch (i % 5) {
+          case 0:
+            data.put("int." + i, i);
+            break;
+          case 1:
+            data.put("long." + i, (long) i << 32);
+            break;
+          case 2:
+            data.put("float." + i, i * 0.5f);
+            break;
+          case 3:
+            data.put("bool." + i, 0 == i % 2);
+            break;
+          default:
+            data.put("string." + i, SOMETHING_TO_STORE + i);
+            break;
+        }
+      }
+      meter().skip("data created, entries: " + size);
+
+      final int[] bytes = new int[serializers.length];
+      for (int s = 0; s < serializers.length; s++) {
+        final String name = serializers[s].getClass().getSimpleName();
+
+        final byte[] blob = serializers[s].serialize(data);
+        meter().beat(name + " serialize, entries: " + size);
+
+        final Map<String, ?> restored = serializers[s].deserialize(blob);
+        meter().beat(name + " deserialize, entries: " + size);
+
+        bytes[s] = blob.length;
+        Log.i(TAG, name + ", entries: " + size + ", bytes: " + blob.length);
+        assertEquals(size, restored.size());
+      }
+
+      // binary format is exact, JSON restores numbers with own types
+      assertEquals(data, BinarySerialization.Instance.deserialize(BinarySerialization.Instance.serialize(data)));
+      assertTrue("binary should be smaller: " + bytes[1] + " vs " + bytes[0], bytes[1] < bytes[0]);
+    }
+  }
+
+  @LargeTest
+  public void test_30_CompressedSerialization() {
+    final String name = UNIT_TESTS_PREFS + ".compressed";
+    final File file = new File(getContext().getApplicationInfo().dataDir + "/shared_prefs", name);
+    final PreferencesUnified.Serialization compressed =
+        new CompressedSerialization(OrgJsonSerializer.Instance, 1024, Deflater.BEST_SPEED);
+
+    // file of the plain serializer
+    final PreferencesUnified plain = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    final Editor edit = plain.edit();
+    for (int i = 0; i < ITERATIONS_L; i++) {
+      edit.putString("s" + i, SOMETHING_TO_STORE);
+    }
+    edit.commit();
+    final long rawLength = file.length();
+    meter().beat("plain save, values: " + ITERATIONS_L + ", bytes: " + rawLength);
+
+    // uncompressed file stays readable by compression stage
+    PreferencesUnified.gc();
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), name, compressed);
+    meter().beat("load of uncompressed file");
+    assertEquals(ITERATIONS_L, prefs.getAll().size());
+    assertEquals(SOMETHING_TO_STORE, prefs.getString("s0", null));
+
+    prefs.edit().putInt("counter", 1).commit();
+    meter().beat("compressed save");
+    assertTrue("compressed file should be smaller: " + file.length() + " vs " + rawLength, file.length() < rawLength);
+
+    PreferencesUnified.gc();
+    final PreferencesUnified loaded = new PreferencesUnified(getContext(), name, compressed);
+    meter().beat("load of compressed file");
+    assertEquals(1, loaded.getInt("counter", -1));
+    assertEquals(SOMETHING_TO_STORE, loaded.getString("s" + (ITERATIONS_L - 1), null));
+
+    // small data is stored without header
+    final Map<String, Object> small = new HashMap<>();
+    small.put("key", SOMETHING_TO_STORE);
+    final byte[] blob = compressed.serialize(small);
+    assertFalse(CompressedSerialization.isCompressed(blob));
+    assertEquals(small, compressed.deserialize(blob));
+
+    // corrupted size in the header is rejected before allocation, load falls back to backup
+    final byte[] corrupted = ByteBuffer.allocate(16).putInt(CompressedSerialization.MAGIC)
+        .put((byte) CompressedSerialization.FLAG_DEFLATE).putInt(Integer.MAX_VALUE).array();
+    try {
+      compressed.deserialize(corrupted);
+      fail("corrupted size should be rejected");
+    } catch (final IllegalArgumentException ignored) {
+      // expected
+    }
+
+    final Statistics stats = PreferencesUnified.getStatistics();
+    Log.i(TAG, "compression ratio: " + stats.getCompressionRatio() + ", cpu ms: " +
+        stats.CompressionTime.get() / 1000000.0 + ", decompression cpu ms: " +
+        stats.DecompressionTime.get() / 1000000.0);
+    assertTrue(stats.getCompressionRatio() > 1.0);
+
+    loaded.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_31_PreferencesUnified_SaveBuffers_Allocations() {
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".buffers",
+        BinarySerialization.Instance);
+
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < ITERATIONS_L; i++) {
+      edit.putString("s" + i, SOMETHING_TO_STORE + i);
+    }
+    edit.commit();
+    meter().skip("values created: " + ITERATIONS_L);
+
+    final int size = BinarySerialization.Instance.serialize(prefs.getAll()).length;
+
+    for (final boolean direct : new boolean[]{false, true}) {
+      SaveBuffers.setDirect(direct);
+      prefs.edit().putInt("counter", -1).commit();
+      meter().skip("buffers warm up, direct: " + direct);
+
+      final long buffers = SaveBuffers.getAllocated();
+      final long threads = allocatedBytes(SAVE_THREADS);
+
+      meter().loop("run " + ITERATIONS + " commits, direct buffers: " + direct);
+      for (int i = 0; i < ITERATIONS; i++) {
+        prefs.edit().putInt("counter", i).commit();
+        meter().recap();
+      }
+      meter().unloop("commits, direct buffers: " + direct);
+
+      final long perSave = (SaveBuffers.getAllocated() - buffers) / ITERATIONS;
+      final long threadsPerSave = (threads < 0) ? -1 : (allocatedBytes(SAVE_THREADS) - threads) / ITERATIONS;
+      Log.i(TAG, "file bytes: " + size + ", buffer bytes per save: " + perSave +
+          ", save threads bytes per save: " + threadsPerSave + ", direct: " + direct);
+
+      // buffers are reused, only new save threads allocate own buffers
+      assertTrue("buffers are not reused: " + perSave + " vs " + size, perSave < size);
+    }
+
+    SaveBuffers.setDirect(false);
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_32_PreferencesUnified_SlotLayout() throws Exception {
+    final String name = UNIT_TESTS_PREFS + ".slots";
+    final File file = new File(getContext().getApplicationInfo().dataDir + "/shared_prefs", name);
+
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    final Editor edit = prefs.edit();
+    for (int i = 0; i < ITERATIONS; i++) {
+      edit.putString("s" + i, SOMETHING_TO_STORE);
+    }
+    edit.commit();
+    meter().skip("values created");
+
+    meter().loop("run " + ITERATIONS + " commits, plain file.");
+    for (int i = 0; i < ITERATIONS; i++) {
+      prefs.edit().putInt("counter", i).commit();
+      meter().recap();
+    }
+    meter().unloop("plain file commits");
+
+    prefs.setSlotLayout(true);
+    meter().loop("run " + ITERATIONS + " commits, A/B slots.");
+    for (int i = 0; i < ITERATIONS; i++) {
+      prefs.edit().putInt("counter", i).commit();
+      meter().recap();
+    }
+    meter().unloop("A/B slots commits");
+
+    // plain file is replaced by slots
+    assertFalse(file.exists());
+    assertTrue(Slots.of(file, 0).exists());
+    assertTrue(Slots.of(file, 1).exists());
+
+    PreferencesUnified.gc();
+    final PreferencesUnified loaded = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    meter().beat("load of the newest slot");
+    assertEquals(ITERATIONS - 1, loaded.getInt("counter", -1));
+    assertEquals(SOMETHING_TO_STORE, loaded.getString("s0", null));
+
+    // torn write of the newest slot, previous generation is loaded
+    final Slots.Slot newest = Slots.load(file);
+    assertNotNull(newest);
+    final RandomAccessFile raf = new RandomAccessFile(Slots.of(file, newest.Index), "rw");
+    raf.setLength(raf.length() / 2);
+    raf.close();
+
+    PreferencesUnified.gc();
+    final PreferencesUnified recovered = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    meter().beat("load after torn write");
+    assertEquals(ITERATIONS - 2, recovered.getInt("counter", -1));
+
+    final byte[][] stale = new byte[Slots.EXTENSIONS.length][];
+    for (int i = 0; i < stale.length; i++) {
+      final RandomAccessFile slot = new RandomAccessFile(Slots.of(file, i), "r");
+      stale[i] = new byte[(int) slot.length()];
+      slot.readFully(stale[i]);
+      slot.close();
+    }
+
+    // back to the log-structured plain file, slots are dropped by the full save
+    recovered.setLogStructured(true);
+    recovered.edit().putInt("counter", ITERATIONS).commit();
+
+    recovered.setSlotLayout(false);
+    recovered.edit().putInt("counter", 0).commit();
+    assertTrue(file.exists());
+    assertFalse(Slots.exists(file));
+
+    // next change is appended to the log
+    recovered.edit().putInt("counter", 1).commit();
+
+    // full save killed before removal of the slots, both layouts on disk and slots are superseded by the file
+    for (int i = 0; i < stale.length; i++) {
+      writeFile(Slots.of(file, i), stale[i]);
+    }
+    assertTrue(Slots.supersede(file, false));
+    assertTrue(Slots.load(file).Superseded);
+
+    PreferencesUnified.gc();
+    final PreferencesUnified plain = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    meter().beat("load of the plain file with log and stale slots");
+    assertEquals(1, plain.getInt("counter", -1));
+    assertEquals(SOMETHING_TO_STORE, plain.getString("s0", null));
+    assertFalse(Slots.exists(file));
+
+    plain.setLogStructured(false);
+    plain.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_33_PreferencesUnified_Recovery() throws Exception {
+    final String name = UNIT_TESTS_PREFS + ".recovery";
+    final File dir = new File(getContext().getApplicationInfo().dataDir + "/shared_prefs");
+    final File file = new File(dir, name);
+    final File bak = new File(dir, name + ".bak");
+    final File corrupt = new File(dir, name + ".corrupt");
+
+    final byte[] v0 = serializeCounter(0);
+    final byte[] v1 = serializeCounter(1);
+    final byte[] v2 = serializeCounter(2);
+    final byte[] torn = Arrays.copyOf(v2, v2.length / 2);
+
+    // save of v2 killed at each step, disk has v1 file and v0 backup before the save
+    assertRecovery(name, "killed during temp write", v1, v0, torn, 1);
+    assertRecovery(name, "killed after backup delete", v1, null, v2, 1);
+    assertRecovery(name, "killed after rename of file to backup", null, v1, v2, 1);
+    assertTrue(file.exists());
+    assertFalse(bak.exists());
+    assertRecovery(name, "killed after rename of temp to file", v2, v1, null, 2);
+    assertRecovery(name, "torn file", torn, v1, null, 1);
+    assertEquals(v1.length, file.length());
+    assertFalse(bak.exists());
+    assertEquals(torn.length, corrupt.length());
+
+    // transient decode failure of the valid file, file is kept aside and never overwritten by the older backup
+    final AtomicInteger failures = new AtomicInteger(1);
+    final PreferencesUnified.Serialization flaky = new PreferencesUnified.Serialization() {
+      @Override
+      public byte[] serialize(final Map<String, ?> data) {
+        return OrgJsonSerializer.Instance.serialize(data);
+      }
+
+      @Override
+      public Map<String, ?> deserialize(final byte[] data) {
+        if (failures.getAndDecrement() > 0) {
+          throw new IllegalStateException("transient decode failure");
+        }
+
+        return OrgJsonSerializer.Instance.deserialize(data);
+      }
+    };
+
+    PreferencesUnified.gc();
+    writeFile(file, v2);
+    writeFile(bak, v1);
+    assertEquals(1, new PreferencesUnified(getContext(), name, flaky).getInt("counter", -1));
+    assertEquals(v1.length, file.length());
+    assertEquals(v2.length, corrupt.length());
+    meter().beat("load, transient decode failure");
+
+    // save after recovery, backup is the recovered file and not the corrupted one
+    PreferencesUnified.gc();
+    assertTrue(new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance).edit()
+        .putInt("counter", 3).commit());
+    assertEquals(v1.length, bak.length());
+    assertTrue(corrupt.delete());
+
+    // stale temp files are removed in background, temp of the running save is not touched
+    final File stale = new File(dir, System.nanoTime() + "-" + name + ".temp");
+    final File fresh = new File(dir, (System.nanoTime() + 1) + "-" + name + ".temp");
+    writeFile(stale, torn);
+    writeFile(fresh, torn);
+    assertTrue(stale.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+
+    PreferencesUnified.gc();
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    while (stale.exists() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    meter().skip("temp files sweep");
+
+    assertFalse(stale.exists());
+    assertTrue(fresh.exists());
+    assertTrue(fresh.delete());
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  /**
+   * Reproduce state of the disk left by killed save and check loaded data.
+   *
+   * @param name name of the preferences file.
+   * @param step name of the save step.
+   * @param main content of the main file, null - no file.
+   * @param backup content of the backup file, null - no file.
+   * @param temp content of the temp file, null - no file.
+   * @param expected expected value of the counter after load.
+   */
+  private void assertRecovery(final String name, final String step, final byte[] main, final byte[] backup,
+                              final byte[] temp, final int expected) throws IOException {
+    final File dir = new File(getContext().getApplicationInfo().dataDir + "/shared_prefs");
+    final File tmp = new File(dir, System.nanoTime() + "-" + name + ".temp");
+
+    PreferencesUnified.gc();
+
+    writeFile(new File(dir, name), main);
+    writeFile(new File(dir, name + ".bak"), backup);
+    writeFile(tmp, temp);
+
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    meter().beat("load, " + step);
+
+    assertEquals(step, expected, prefs.getInt("counter", -1));
+    tmp.delete();
+  }
+
+  /**
+   * Write content to the file.
+   *
+   * @param file file to write.
+   * @param data content of the file, null - delete the file.
+   */
+  private static void writeFile(final File file, final byte[] data) throws IOException {
+    if (null == data) {
+      file.delete();
+      return;
+    }
+
+    final FileOutputStream os = new FileOutputStream(file);
+    try {
+      os.write(data);
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Serialize preferences with one counter value.
+   *
+   * @param value value of the counter.
+   * @return serialized data.
+   */
+  private static byte[] serializeCounter(final int value) {
+    final Map<String, Object> data = new HashMap<>();
+    data.put("counter", value);
+
+    return OrgJsonSerializer.Instance.serialize(data);
+  }
+
+  @LargeTest
+  public void test_34_PreferencesUnified_ApplyThroughput() throws Exception {
+    final int files = 50;
+    final int threads = 8;
+    final int applies = 2000;
+
+    final PreferencesUnified[] prefs = new PreferencesUnified[files];
+    for (int i = 0; i < files; i++) {
+      prefs[i] = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".apply" + i, OrgJsonSerializer.Instance);
+    }
+    meter().skip("files opened");
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, NamedDaemons.Instance);
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+
+            // each thread spreads own key over all files
+            for (int i = 0; i < applies; i++) {
+              prefs[(i + thread * 7) % files].edit().putInt("thread" + thread, i).apply();
+            }
+          } catch (final InterruptedException ignored) {
+            // do nothing
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    meter().skip("threads ready");
+    final long started = System.nanoTime();
+    start.countDown();
+    done.await();
+    final long elapsed = System.nanoTime() - started;
+    meter().beat("parallel apply, threads: " + threads + ", files: " + files);
+    pool.shutdown();
+
+    Log.i(TAG, "apply() throughput: " + (threads * applies * TimeUnit.SECONDS.toNanos(1) / elapsed) + " ops/sec");
+
+    // commit waits for all scheduled saves of the file
+    for (int i = 0; i < files; i++) {
+      prefs[i].edit().putBoolean("done", true).commit();
+    }
+    meter().beat("pending saves flushed");
+
+    PreferencesUnified.gc();
+
+    for (int i = 0; i < files; i++) {
+      final PreferencesUnified loaded = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".apply" + i,
+          OrgJsonSerializer.Instance);
+
+      for (int t = 0; t < threads; t++) {
+        assertTrue("apply is lost", loaded.contains("thread" + t));
+      }
+
+      loaded.edit().clear().commit();
+    }
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_35_PreferencesUnified_SaveExecutor() {
+    final int applies = 1000;
+    final AtomicInteger executed = new AtomicInteger();
+    final ExecutorService single = Executors.newSingleThreadExecutor(NamedDaemons.Instance);
+
+    // application executor, saves pinned to one thread
+    PreferencesUnified.setSaveExecutor(new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        executed.incrementAndGet();
+        single.execute(command);
+      }
+    });
+
+    try {
+      final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".executor",
+          OrgJsonSerializer.Instance);
+
+      for (int i = 0; i < applies; i++) {
+        prefs.edit().putInt("counter", i).apply();
+      }
+      prefs.edit().putBoolean("done", true).commit();
+      meter().beat("applies on custom executor: " + applies + ", saves executed: " + executed.get());
+
+      assertTrue("saves should run on custom executor", executed.get() > 0);
+      assertTrue("pending saves should be de-duplicated", executed.get() < applies);
+
+      // executor does not accept saves anymore, commit is done on calling thread and keeps its priority
+      final int priority = Thread.currentThread().getPriority();
+      single.shutdown();
+      assertTrue(prefs.edit().putInt("counter", applies).commit());
+      assertEquals(priority, Thread.currentThread().getPriority());
+      meter().beat("commit on rejected executor");
+
+      PreferencesUnified.setSaveExecutor(null);
+      PreferencesUnified.gc();
+
+      final PreferencesUnified loaded = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".executor",
+          OrgJsonSerializer.Instance);
+      assertEquals(applies, loaded.getInt("counter", -1));
+
+      loaded.edit().clear().commit();
+      meter().skip("cleanup");
+    } finally {
+      PreferencesUnified.setSaveExecutor(null);
+      single.shutdownNow();
+    }
+  }
+
+  @LargeTest
+  public void test_36_PreferencesUnified_SerialSaveLane() throws Exception {
+    final int threads = 4;
+    final int applies = 1000;
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger overlapped = new AtomicInteger();
+
+    // slow serialization, so applies arrive during the running save
+    final PreferencesUnified.Serialization slow = new PreferencesUnified.Serialization() {
+      @Override
+      public byte[] serialize(final Map<String, ?> data) {
+        if (active.incrementAndGet() > 1) {
+          overlapped.incrementAndGet();
+        }
+
+        try {
+          Thread.sleep(20);
+        } catch (final InterruptedException ignored) {
+          // do nothing
+        } finally {
+          active.decrementAndGet();
+        }
+
+        return OrgJsonSerializer.Instance.serialize(data);
+      }
+
+      @Override
+      public Map<String, ?> deserialize(final byte[] data) {
+        return OrgJsonSerializer.Instance.deserialize(data);
+      }
+    };
+
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".lane", slow);
+    final int reruns = PreferencesUnified.getStatistics().RerunSaves.get();
+    final CountDownLatch done = new CountDownLatch(threads);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, NamedDaemons.Instance);
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < applies; i++) {
+            prefs.edit().putInt("thread" + thread, i).apply();
+          }
+
+          done.countDown();
+        }
+      });
+    }
+
+    done.await();
+    pool.shutdown();
+    meter().beat("applies during slow saves, threads: " + threads);
+
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    while (Storage.SAVE_IDLE != prefs.mStorage.SaveState.get() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    meter().beat("save lane idle, reruns: " + (PreferencesUnified.getStatistics().RerunSaves.get() - reruns));
+
+    assertEquals("saves of one file should never overlap", 0, overlapped.get());
+    assertEquals(Storage.SAVE_IDLE, prefs.mStorage.SaveState.get());
+
+    // save requested mid-flight is not lost
+    PreferencesUnified.gc();
+    final PreferencesUnified loaded = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".lane",
+        OrgJsonSerializer.Instance);
+
+    for (int t = 0; t < threads; t++) {
+      assertEquals(applies - 1, loaded.getInt("thread" + t, -1));
+    }
+
+    loaded.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_37_PreferencesUnified_CommitLatencyUnderApplyLoad() throws Exception {
+    final int files = 40;
+    final int threads = 4;
+    final int commits = 200;
+
+    final PreferencesUnified[] background = new PreferencesUnified[files];
+    for (int i = 0; i < files; i++) {
+      background[i] = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".load" + i, OrgJsonSerializer.Instance);
+    }
+
+    // background apply load on unrelated files
+    final AtomicBoolean stop = new AtomicBoolean();
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, NamedDaemons.Instance);
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; !stop.get(); i++) {
+            background[(i + thread) % files].edit().putString("value" + thread, SOMETHING_TO_STORE + i).apply();
+          }
+        }
+      });
+    }
+    meter().skip("apply load started");
+
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".latency",
+        OrgJsonSerializer.Instance);
+    final long[] latency = new long[commits];
+
+    try {
+      for (int i = 0; i < commits; i++) {
+        final long started = System.nanoTime();
+        assertTrue(prefs.edit().putInt("counter", i).commit());
+        latency[i] = System.nanoTime() - started;
+      }
+    } finally {
+      stop.set(true);
+      pool.shutdown();
+    }
+    meter().beat("commits under apply load: " + commits);
+
+    Arrays.sort(latency);
+    Log.i(TAG, "commit() latency, ms: p50 " + latency[commits / 2] / 1e6 + ", p99 " +
+        latency[commits * 99 / 100] / 1e6 + ", max " + latency[commits - 1] / 1e6);
+
+    pool.awaitTermination(5, TimeUnit.SECONDS);
+    prefs.edit().clear().commit();
+
+    for (int i = 0; i < files; i++) {
+      background[i].edit().clear().commit();
+    }
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_38_PreferencesUnified_CommitAcknowledgment() throws Exception {
+    final int threads = 8;
+    final int commits = 200;
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".ack",
+        OrgJsonSerializer.Instance);
+
+    // async commit is acknowledged by persisted version
+    final Future<Boolean> async = prefs.edit().putString("async", SOMETHING_TO_STORE).commitAsync();
+    meter().beat("commitAsync() returned");
+    assertTrue(async.get(5, TimeUnit.SECONDS));
+    assertTrue(async.isDone());
+    assertEquals(prefs.getVersion(), prefs.getPersistedVersion());
+    meter().beat("commitAsync() persisted");
+
+    assertFalse("nothing to commit", prefs.edit().commitAsync().get());
+
+    // concurrent commits merge saves, but each of them waits for own data on disk
+    final AtomicInteger early = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(threads);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, NamedDaemons.Instance);
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < commits; i++) {
+            final int before = prefs.getVersion();
+
+            if (!prefs.edit().putInt("thread" + thread, i).commit() || prefs.getPersistedVersion() - before <= 0) {
+              early.incrementAndGet();
+            }
+          }
+
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue("commit should never hang", done.await(60, TimeUnit.SECONDS));
+    pool.shutdown();
+    meter().beat("concurrent commits, threads: " + threads);
+
+    assertEquals("commit returned before its data reached the disk", 0, early.get());
+
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_39_PreferencesUnified_WriteCoalescing_ApplyDuringSave() throws Exception {
+    final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".window",
+        OrgJsonSerializer.Instance);
+    prefs.setWriteCoalescing(300, 300, TimeUnit.MILLISECONDS, ITERATIONS_L);
+
+    final Thread committer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        prefs.edit().putInt("commit", 1).commit();
+      }
+    });
+
+    // save thread is parked on the storage monitor, apply lands in the middle of the save
+    synchronized (prefs.mStorage) {
+      prefs.edit().putInt("first", 1).apply();
+      committer.start();
+
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+      while (!isSaveBlocked() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      assertTrue("save should wait for the storage monitor", isSaveBlocked());
+
+      prefs.edit().putInt("second", 1).apply();
+    }
+    committer.join();
+    meter().beat("apply during save");
+
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    while (prefs.getPersistedVersion() != prefs.getVersion() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    meter().skip("window saved");
+
+    assertEquals("apply done during the save should not be lost", prefs.getVersion(), prefs.getPersistedVersion());
+
+    prefs.setWriteCoalescing(0, 0, TimeUnit.MILLISECONDS, 0);
+    prefs.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  /**
+   * Is any thread blocked inside the save to disk.
+   *
+   * @return true - save thread waits for a monitor, otherwise false.
+   */
+  private static boolean isSaveBlocked() {
+    for (final Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+      if (Thread.State.BLOCKED != entry.getKey().getState()) {
+        continue;
+      }
+
+      for (final StackTraceElement frame : entry.getValue()) {
+        if ("saveToDisk".equals(frame.getMethodName())) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  @LargeTest
+  public void test_40_PreferencesUnified_SaveExecutor_Dropped() throws Exception {
+    final AtomicInteger dropped = new AtomicInteger();
+    final ExecutorService single = Executors.newSingleThreadExecutor(NamedDaemons.Instance);
+
+    try {
+      final PreferencesUnified prefs = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".dropped",
+          OrgJsonSerializer.Instance);
+
+      // executor with discard policy, save requests are lost
+      PreferencesUnified.setSaveExecutor(new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+          dropped.incrementAndGet();
+        }
+      });
+
+      prefs.edit().putInt("apply", 1).apply();
+      assertTrue(prefs.edit().putInt("commit", 1).commit());
+      assertTrue(prefs.edit().putInt("async", 1).commitAsync().get(5, TimeUnit.SECONDS));
+      meter().beat("commits on dropping executor, dropped requests: " + dropped.get());
+
+      assertTrue("requests should reach the executor", dropped.get() > 0);
+      assertEquals(prefs.getVersion(), prefs.getPersistedVersion());
+
+      // commit from the thread of the executor, save request is queued behind the calling task
+      PreferencesUnified.setSaveExecutor(single);
+
+      final Future<Boolean> reentrant = single.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return prefs.edit().putInt("reentrant", 1).commit() &&
+              prefs.edit().putInt("reentrantAsync", 1).commitAsync().get();
+        }
+      });
+      assertTrue(reentrant.get(5, TimeUnit.SECONDS));
+      meter().beat("commits on the thread of the executor");
+
+      PreferencesUnified.setSaveExecutor(null);
+      PreferencesUnified.gc();
+
+      final PreferencesUnified loaded = new PreferencesUnified(getContext(), UNIT_TESTS_PREFS + ".dropped",
+          OrgJsonSerializer.Instance);
+      assertEquals(1, loaded.getInt("apply", -1));
+      assertEquals(1, loaded.getInt("commit", -1));
+      assertEquals(1, loaded.getInt("async", -1));
+      assertEquals(1, loaded.getInt("reentrant", -1));
+      assertEquals(1, loaded.getInt("reentrantAsync", -1));
+
+      loaded.edit().clear().commit();
+      meter().skip("cleanup");
+    } finally {
+      PreferencesUnified.setSaveExecutor(null);
+      single.shutdownNow();
+    }
+  }
+
+  @LargeTest
+  public void test_41_PreferencesUnified_OpenAsync_Interrupted() throws Exception {
+    final String name = UNIT_TESTS_PREFS + ".interrupted";
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance).edit().putInt("value", 1).commit();
+    PreferencesUnified.gc();
+
+    // loading is stopped until the release
+    final PreferencesUnified.Serialization blocked = new PreferencesUnified.Serialization() {
+      @Override
+      public byte[] serialize(final Map<String, ?> data) {
+        return OrgJsonSerializer.Instance.serialize(data);
+      }
+
+      @Override
+      public Map<String, ?> deserialize(final byte[] data) {
+        loading.countDown();
+
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException ignored) {
+          // do nothing
+        }
+
+        return OrgJsonSerializer.Instance.deserialize(data);
+      }
+    };
+
+    final PreferencesUnified lazy = PreferencesUnified.openLazy(getContext(), name, blocked);
+    final Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        lazy.getInt("value", -1);
+      }
+    });
+    loader.start();
+    loading.await();
+    meter().skip("loading started");
+
+    // waiting thread of the async opening is interrupted, not loaded instance is never returned
+    final Future<PreferencesUnified> future = PreferencesUnified.openAsync(getContext(), name, blocked,
+        new Executor() {
+          @Override
+          public void execute(final Runnable command) {
+            Thread.currentThread().interrupt();
+            command.run();
+          }
+        });
+    Thread.interrupted();
+
+    try {
+      future.get();
+      fail("interrupted opening should fail");
+    } catch (final ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof InterruptedException);
+    }
+    meter().beat("interrupted async opening");
+
+    // interrupted getter returns default value and keeps the interrupted state
+    Thread.currentThread().interrupt();
+    assertEquals(-1, lazy.getInt("value", -1));
+    assertTrue("interrupted state should be kept", Thread.interrupted());
+    meter().beat("interrupted getter");
+
+    release.countDown();
+    loader.join();
+
+    assertEquals(1, lazy.getInt("value", -1));
+    assertEquals(1, PreferencesUnified.openAsync(getContext(), name, blocked, new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        command.run();
+      }
+    }).get().getInt("value", -1));
+
+    lazy.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @LargeTest
+  public void test_42_PreferencesUnified_InterruptedEdit_DuringLoad() throws Exception {
+    final String name = UNIT_TESTS_PREFS + ".interrupted-edit";
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance).edit().putInt("value", 1).commit();
+    PreferencesUnified.gc();
+
+    // loading is stopped until the release
+    final PreferencesUnified.Serialization blocked = new PreferencesUnified.Serialization() {
+      @Override
+      public byte[] serialize(final Map<String, ?> data) {
+        return OrgJsonSerializer.Instance.serialize(data);
+      }
+
+      @Override
+      public Map<String, ?> deserialize(final byte[] data) {
+        loading.countDown();
+
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException ignored) {
+          // do nothing
+        }
+
+        return OrgJsonSerializer.Instance.deserialize(data);
+      }
+    };
+
+    final PreferencesUnified lazy = PreferencesUnified.openLazy(getContext(), name, blocked);
+    final Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        lazy.getInt("value", -1);
+      }
+    });
+    loader.start();
+    loading.await();
+    meter().skip("loading started");
+
+    // loading is finished while interrupted editor waits for it
+    final Thread releaser = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (final InterruptedException ignored) {
+          // do nothing
+        }
+
+        release.countDown();
+      }
+    });
+    releaser.start();
+
+    // interrupted editor is never applied to not loaded data, otherwise save overwrites the file
+    Thread.currentThread().interrupt();
+    final Editor applied = lazy.edit();
+    assertTrue("interrupted state should be kept", Thread.interrupted());
+    applied.putInt("apply", 2).apply();
+    meter().beat("interrupted edit, apply");
+
+    Thread.currentThread().interrupt();
+    final Editor committed = lazy.edit();
+    assertTrue("interrupted state should be kept", Thread.interrupted());
+    assertTrue(committed.putInt("commit", 3).commit());
+    meter().beat("interrupted edit, commit");
+
+    releaser.join();
+    loader.join();
+
+    PreferencesUnified.gc();
+    final PreferencesUnified loaded = new PreferencesUnified(getContext(), name, OrgJsonSerializer.Instance);
+    assertEquals(1, loaded.getInt("value", -1));
+    assertEquals(2, loaded.getInt("apply", -1));
+    assertEquals(3, loaded.getInt("commit", -1));
+
+    loaded.edit().clear().commit();
+    meter().skip("cleanup");
+  }
+
+  @Override
+  public void warmUp() {
+    if (null == TestSetValues || TestSetValues.isEmpty()) {
+      //			CountryDao dao = new CountryDao(getContext());
+      //			dao.init();
+      //
+      //			extracted = dao.getAll();
+
+      TestSetValues.add("set string #1");
+      TestSetValues.add("set string #2");
+      TestSetValues.add("set string #3");
+      TestSetValues.add("set string #4");
+
+      final StringBuilder dumpString = new StringBuilder(0xffff * 4);
+
+      while (dumpString.length() < 0xffff * 3) {
+        //                 0         0         0         0         0         0
+        dumpString.append("This is dummy string for testing the chunks logic .");
+      }
+
+      ExtraLongString = dumpString.toString();
+    }
+  }
+
+	/* [ NESTED DECLARATIONS ] ======================================================================================= */
+
+  /** Serialize to/from JSON with use of standard {@link org.json.JSONObject}. */
+  private static final class OrgJsonSerializer
+      implements PreferencesUnified.Serialization {
+    /** Singleton instance. */
+    public static final PreferencesUnified.Serialization Instance = new OrgJsonSerializer();
+    /** Default encoding. */
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private OrgJsonSerializer() {
+      // do nothing
+    }
+
+    @Override
+    public byte[] serialize(final Map<String, ?> data) {
+      final String blob = new org.json.JSONObject(data).toString();
+
+      return blob.getBytes(UTF8);
+    }
+
+    @Override
+    public Map<String, ?> deserialize(final byte[] data) {
+      if (null != data) {
+        try {
+          final String json = new String(data, UTF8);
+          final JSONObject extracted = (JSONObject) new JSONTokener(json).nextValue();
+
+          return toMap(extracted);
+        } catch (final Throwable ignored) {
+        }
+      }
+
+      return null;
+    }
+
+    @NonNull
+    public static Map<String, Object> toMap(@NonNull final JSONObject object) throws JSONException {
+      final Map<String, Object> map = new HashMap<>();
+
+      final Iterator<String> keysItr = object.keys();
+      while (keysItr.hasNext()) {
+        final String key = keysItr.next();
+        Object value = object.get(key);
+
+        if (value instanceof JSONArray) {
+          value = toList((JSONArray) value);
+        } else if (value instanceof JSONObject) {
+          value = toMap((JSONObject) value);
+        }
+
+        map.put(key, value);
+      }
+
+      return map;
+    }
+
+    @NonNull
+    public static List<Object> toList(@NonNull final JSONArray array) throws JSONException {
+      final List<Object> list = new ArrayList<>();
+
+      for (int i = 0, len = array.length(); i < len; i++) {
+        Object value = array.get(i);
+
+        if (value instanceof JSONArray) {
+          value = toList((JSONArray) value);
+        } else if (value instanceof JSONObject) {
+          value = toMap((JSONObject) value);
+        }
+
+        list.add(value);
+      }
+
+      return list;
+    }
+  }
+
+  /** Serializer that calculates checksum of the file content, used for I/O path measurements. */
+  private static class ChecksumSerializer implements PreferencesUnified.Serialization {
+    /** Singleton instance. */
+    public static final PreferencesUnified.Serialization Instance = new ChecksumSerializer();
+    /** Key of the checksum value. */
+    public static final String KEY = "checksum";
+
+    @Override
+    public byte[] serialize(final Map<String, ?> data) {
+      return null;
+    }
+
+    @Override
+    public Map<String, ?> deserialize(final byte[] data) {
+      return (null == data) ? null : result(ByteBuffer.wrap(data));
+    }
+
+    @NonNull
+    protected static Map<String, ?> result(@NonNull final ByteBuffer data) {
+      long sum = 0;
+
+      while (data.hasRemaining()) {
+        sum += data.get();
+      }
+
+      final Map<String, Object> map = new HashMap<>();
+      map.put(KEY, sum);
+
+      return map;
+    }
+  }
+
+  /** Checksum serializer that works with memory-mapped files. */
+  private static final class ChecksumBufferSerializer extends ChecksumSerializer
+      implements PreferencesUnified.BufferSerialization {
+    /** Singleton instance. */
+    public static final PreferencesUnified.Serialization Instance = new ChecksumBufferSerializer();
+
+    @Override
+    public Map<String, ?> deserialize(@NonNull final ByteBuffer data) {
+      return result(data);
+    }
+  }
+
+  /** JSON serializer that works with file streams directly. */
+  private static final class OrgJsonStreamingSerializer implements PreferencesUnified.StreamingSerialization {
+    /** Singleton instance. */
+    public static final PreferencesUnified.Serialization Instance = new OrgJsonStreamingSerializer();
+    /** Default encoding. */
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    @Override
+    public byte[] serialize(final Map<String, ?> data) {
+      return OrgJsonSerializer.Instance.serialize(data);
+    }
+
+    @Override
+    public Map<String, ?> deserialize(final byte[] data) {
+      return OrgJsonSerializer.Instance.deserialize(data);
+    }
+
+    @Override
+    public void serialize(@NonNull final Map<String, ?> data, @NonNull final OutputStream out) throws IOException {
+      final Writer writer = new OutputStreamWriter(out, UTF8);
+
+      writer.write(new JSONObject(data).toString());
+      writer.flush();
+    }
+
+    @Override
+    public Map<String, ?> deserialize(@NonNull final InputStream in) throws IOException {
+      final Reader reader = new InputStreamReader(in, UTF8);
+      final StringBuilder json = new StringBuilder();
+      final char[] buffer = new char[8 * 1024];
+
+      for (int read; (read = reader.read(buffer)) >= 0; ) {
+        json.append(buffer, 0, read);
+      }
+
+      try {
+        return OrgJsonSerializer.toMap((JSONObject) new JSONTokener(json.toString()).nextValue());
+      } catch (final JSONException ignored) {
+        return null;
+      }
+    }
+  }
+
+  /** JSON serializer that keeps the last received changes. */
+  private static final class DeltaSerializer implements PreferencesUnified.DeltaSerialization {
+    /** Quantity of the next saves that should fail. */
+    public final AtomicInteger Failures = new AtomicInteger();
+    /** Changed keys of the last save. */
+    public volatile Set<String> Changed = Collections.emptySet();
+    /** Removed keys of the last save. */
+    public volatile Set<String> Removed = Collections.emptySet();
+    /** Is last save a full save. */
+    public volatile boolean Full;
+
+    @Override
+    public byte[] serialize(@NonNull final Map<String, ?> data, @NonNull final Set<String> changed,
+                            @NonNull final Set<String> removed, final boolean full) {
+      if (Failures.get() > 0) {
+        Failures.decrementAndGet();
+        throw new IllegalStateException("Expected failure of the save.");
+      }
+
+      Changed = new HashSet<>(changed);
+      Removed = new HashSet<>(removed);
+      Full = full;
+
+      return OrgJsonSerializer.Instance.serialize(data);
+    }
+
+    @Override
+    public byte[] serialize(final Map<String, ?> data) {
+      return OrgJsonSerializer.Instance.serialize(data);
+    }
+
+    @Override
+    public Map<String, ?> deserialize(final byte[] data) {
+      return OrgJsonSerializer.Instance.deserialize(data);
     }
   }
 }
@@ -0,0 +1,504 @@
+package com.artfulbits.uniprefs.storages;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.artfulbits.junit.PerformanceTests;
+import com.artfulbits.unipref.BuildConfig;
+import com.artfulbits.uniprefs.toolbox.Types;
+
+import org.junit.runner.*;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings("NewApi,PMD")
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 21
+    , reportSdk = 18
+    , manifest = "./src/test/AndroidManifest.xml"
+    , constants = BuildConfig.class)
+public class TypedStorageTests extends PerformanceTests {
+  /* [ CONSTANTS ] ================================================================================================= */
+
+  /** Capacity of the new storage, keep in sync with TypedStorage.MIN_CAPACITY. */
+  private static final int MIN_CAPACITY = 8;
+  /** Mask of the hash index of the new storage, index is twice bigger than capacity. */
+  private static final int MIN_INDEX_MASK = MIN_CAPACITY * 2 - 1;
+
+	/* [ IMPLEMENTATION & HELPERS ] ================================================================================== */
+
+  @Override
+  public void configMeter() {
+
+  }
+
+  @SmallTest
+  public void test_00_TypedStorage_DeletedBuckets() {
+    final List<String> keys = collidingKeys(3, MIN_INDEX_MASK);
+    final TypedStorage storage = new TypedStorage();
+
+    // one probe chain: a, b, c
+    for (int i = 0; i < keys.size(); i++) {
+      storage.putInt(keys.get(i), i);
+    }
+
+    // removed bucket in the middle of the chain should not stop the search
+    assertTrue(storage.remove(keys.get(1)));
+    assertFalse(storage.remove(keys.get(1)));
+    assertFalse(storage.contains(keys.get(1)));
+    assertEquals(0, storage.getInt(keys.get(0), -1));
+    assertEquals(2, storage.getInt(keys.get(2), -1));
+    assertEquals(2, storage.size());
+
+    // re-insert over the removed bucket, chain stays consistent
+    storage.putString(keys.get(1), "again");
+    assertEquals("again", storage.getString(keys.get(1), null));
+    assertEquals(0, storage.getInt(keys.get(0), -1));
+    assertEquals(2, storage.getInt(keys.get(2), -1));
+    assertEquals(3, storage.size());
+
+    // remove and re-insert the head of the chain
+    assertTrue(storage.remove(keys.get(0)));
+    storage.putLong(keys.get(0), Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, storage.getLong(keys.get(0), -1));
+    assertEquals("again", storage.getString(keys.get(1), null));
+    assertEquals(2, storage.getInt(keys.get(2), -1));
+    assertEquals(3, storage.size());
+    assertEquals(3, storage.asMap().entrySet().size());
+
+    // null key is a regular key
+    storage.putInt((String) null, 42);
+    assertEquals(42, storage.getInt((String) null, -1));
+    assertTrue(storage.remove(null));
+    assertFalse(storage.contains((String) null));
+  }
+
+  @SmallTest
+  public void test_01_TypedStorage_GrowCompaction() {
+    final TypedStorage storage = new TypedStorage();
+
+    // all slots are used, then most of them removed
+    for (int i = 0; i < MIN_CAPACITY; i++) {
+      storage.putInt("key" + i, i);
+    }
+
+    for (int i = 0; i < MIN_CAPACITY - 2; i++) {
+      assertTrue(storage.remove("key" + i));
+    }
+
+    assertEquals(2, storage.size());
+
+    // no free slots: removed slots are compacted, capacity is not doubled
+    storage.putInt("fresh", 100);
+    assertEquals(3, storage.size());
+    assertEquals(MIN_CAPACITY - 2, storage.getInt("key" + (MIN_CAPACITY - 2), -1));
+    assertEquals(MIN_CAPACITY - 1, storage.getInt("key" + (MIN_CAPACITY - 1), -1));
+    assertEquals(100, storage.getInt("fresh", -1));
+
+    for (int i = 0; i < MIN_CAPACITY - 2; i++) {
+      assertFalse(storage.contains("key" + i));
+    }
+
+    final Set<String> expected = new HashSet<>(Arrays.asList("key" + (MIN_CAPACITY - 2), "key" + (MIN_CAPACITY - 1),
+        "fresh"));
+    assertEquals(expected, storage.asMap().keySet());
+
+    // storage more than half full: capacity is doubled, all values survive
+    for (int i = 0; i < MIN_CAPACITY * 16; i++) {
+      storage.putInt("grow" + i, i);
+    }
+
+    assertEquals(3 + MIN_CAPACITY * 16, storage.size());
+    for (int i = 0; i < MIN_CAPACITY * 16; i++) {
+      assertEquals(i, storage.getInt("grow" + i, -1));
+    }
+    assertEquals(100, storage.getInt("fresh", -1));
+
+    // clear drops everything
+    storage.clear();
+    assertEquals(0, storage.size());
+    assertFalse(storage.contains("fresh"));
+    assertFalse(storage.asMap().entrySet().iterator().hasNext());
+  }
+
+  @SmallTest
+  public void test_02_TypedStorage_TypeChange() {
+    final TypedStorage storage = new TypedStorage();
+    final Set<String> set = new HashSet<>(Arrays.asList("a", "b"));
+
+    storage.putInt("key", 10);
+    assertEquals(10, storage.get("key"));
+
+    // primitive to string, old bits are not visible
+    storage.putString("key", "text");
+    assertEquals("text", storage.get("key"));
+    assertEquals(-1, storage.getInt("key", -1));
+    assertFalse(storage.getBoolean("key", false));
+
+    // string to primitive, old object is not visible
+    storage.putLong("key", 1L << 40);
+    assertEquals(1L << 40, storage.get("key"));
+    assertEquals(1L << 40, storage.getLong("key", -1));
+    assertNull(storage.getStringSet("key", null));
+
+    storage.putFloat("key", 1.5f);
+    assertEquals(1.5f, storage.get("key"));
+    assertEquals(1, storage.getInt("key", -1));
+    assertFalse(storage.getBoolean("key", false));
+
+    storage.putBoolean("key", true);
+    assertEquals(Boolean.TRUE, storage.get("key"));
+    assertTrue(storage.getBoolean("key", false));
+    assertEquals(-1, storage.getInt("key", -1));
+
+    storage.putStringSet("key", set);
+    assertSame(set, storage.getStringSet("key", null));
+    assertFalse(storage.getBoolean("key", false));
+
+    // unknown types are kept as objects, numbers are still converted
+    storage.put("key", 2.5d);
+    assertEquals(2.5d, storage.get("key"));
+    assertEquals(2, storage.getInt("key", -1));
+    assertEquals(2.5f, storage.getFloat("key", -1f), 0f);
+    assertNull(storage.getStringSet("key", null));
+
+    // value type change does not create new keys
+    assertEquals(1, storage.size());
+    assertEquals(1, storage.asMap().size());
+
+    // in-place update is only allowed for the same type
+    storage.putInt("key", 1);
+    assertFalse(storage.updateInPlace("key", Types.FLOAT, Float.floatToRawIntBits(1f)));
+    assertTrue(storage.updateInPlace("key", Types.INT, 2));
+    assertEquals(2, storage.getInt("key", -1));
+
+    // null object value removes the key
+    storage.putString("key", null);
+    assertFalse(storage.contains("key"));
+    assertEquals(0, storage.size());
+  }
+
+  @SmallTest
+  public void test_03_TypedStorage_RemoveDuringIteration() {
+    final TypedStorage storage = new TypedStorage();
+    final int count = MIN_CAPACITY * 4;
+
+    for (int i = 0; i < count; i++) {
+      storage.putInt("key" + i, i);
+    }
+
+    // remove even values by entry iterator
+    final Iterator<Map.Entry<String, Object>> entries = storage.asMap().entrySet().iterator();
+    int visited = 0;
+
+    while (entries.hasNext()) {
+      final Map.Entry<String, Object> entry = entries.next();
+      visited++;
+
+      if ((Integer) entry.getValue() % 2 == 0) {
+        entries.remove();
+
+        try {
+          entries.remove();
+          fail("second remove of the same entry should fail");
+        } catch (final IllegalStateException ignored) {
+          // expected
+        }
+      }
+    }
+
+    assertEquals(count, visited);
+    assertEquals(count / 2, storage.size());
+    assertEquals(count / 2, storage.asMap().size());
+
+    for (int i = 0; i < count; i++) {
+      assertEquals(i % 2 != 0, storage.contains("key" + i));
+    }
+
+    // key removed from storage ahead of the iterator is skipped
+    final Iterator<String> keys = storage.asMap().keySet().iterator();
+    final Set<String> seen = new HashSet<>();
+    final String first = keys.next();
+    seen.add(first);
+    assertTrue(storage.remove("key" + (count - 1)));
+
+    while (keys.hasNext()) {
+      final String key = keys.next();
+      assertTrue(seen.add(key));
+
+      // remove by key set iterator
+      keys.remove();
+    }
+
+    assertFalse(seen.contains("key" + (count - 1)));
+    assertEquals(count / 2 - 1, seen.size());
+    assertEquals(1, storage.size());
+    assertTrue(storage.contains(first));
+
+    // removed slots are reused by the next compaction
+    for (int i = 0; i < count; i++) {
+      storage.putInt("next" + i, i);
+    }
+
+    assertEquals(count + 1, storage.size());
+    assertEquals(count + 1, storage.asMap().entrySet().size());
+  }
+
+  @SmallTest
+  public void test_04_TypedStorage_FreezeAndShare() {
+    final TypedStorage storage = new TypedStorage();
+    storage.putInt("int", 1);
+    storage.putLong("long", 1L);
+    storage.putString("string", "text");
+
+    assertFalse(storage.isFrozen());
+    assertFalse(storage.isShared());
+    assertTrue(storage.updateInPlace("int", Types.INT, 2));
+
+    // frozen storage is read-only for regular modifications
+    assertSame(storage, storage.freeze());
+    assertTrue(storage.isFrozen());
+    assertReadOnly(storage);
+
+    // but in-place updates are allowed until storage is shared. Long values are never updated in place
+    assertTrue(storage.updateInPlace("int", Types.INT, 3));
+    assertEquals(3, storage.getInt("int", -1));
+    assertFalse(storage.updateInPlace("long", Types.LONG, 2L));
+    assertFalse(storage.updateInPlace("missing", Types.INT, 2));
+
+    // shared storage is fixed forever
+    assertSame(storage, storage.share());
+    assertTrue(storage.isShared());
+    assertSame(storage, storage.share());
+    assertFalse(storage.updateInPlace("int", Types.INT, 4));
+    assertFalse(storage.updateInPlace(new KeyHandle("int"), Types.INT, 4));
+    assertEquals(3, storage.getInt("int", -1));
+
+    // copy is modifiable and independent from the source
+    final TypedStorage copy = storage.copy();
+    assertFalse(copy.isFrozen());
+    assertFalse(copy.isShared());
+
+    copy.putInt("int", 5);
+    copy.remove("string");
+    copy.putBoolean("bool", true);
+    assertTrue(copy.updateInPlace("int", Types.INT, 6));
+
+    assertEquals(6, copy.getInt("int", -1));
+    assertEquals(3, storage.getInt("int", -1));
+    assertEquals("text", storage.getString("string", null));
+    assertFalse(storage.contains("bool"));
+    assertEquals(3, storage.size());
+    assertEquals(3, copy.size());
+
+    // map view knows its owner
+    assertSame(copy, TypedStorage.unwrap(copy.asMap()));
+    assertNull(TypedStorage.unwrap(new HashMap<String, Object>()));
+  }
+
+  @SmallTest
+  public void test_05_TypedStorage_HandleAfterCompaction() {
+    final TypedStorage storage = new TypedStorage();
+    final KeyHandle[] handles = new KeyHandle[MIN_CAPACITY];
+
+    for (int i = 0; i < MIN_CAPACITY; i++) {
+      handles[i] = new KeyHandle("key" + i);
+      storage.putInt(handles[i], i);
+      assertEquals(i, handles[i].Slot);
+    }
+
+    // survivors are moved to the first slots by compaction
+    for (int i = 0; i < MIN_CAPACITY - 2; i++) {
+      storage.remove("key" + i);
+    }
+    storage.putInt("fresh", 100);
+
+    final KeyHandle last = handles[MIN_CAPACITY - 1];
+    final KeyHandle beforeLast = handles[MIN_CAPACITY - 2];
+
+    // cached slots are out of the used slots range or point to other keys, handles are re-bound
+    assertEquals(MIN_CAPACITY - 1, storage.getInt(last, -1));
+    assertEquals(MIN_CAPACITY - 2, storage.getInt(beforeLast, -1));
+    assertTrue(last.Slot < 3);
+    assertTrue(beforeLast.Slot < 3);
+    assertTrue(last.Slot != beforeLast.Slot);
+
+    // handles of removed keys do not see values of other keys
+    for (int i = 0; i < MIN_CAPACITY - 2; i++) {
+      assertFalse(storage.contains(handles[i]));
+      assertEquals(-1, storage.getInt(handles[i], -1));
+    }
+
+    // stale handle points to the slot of other key, in-place update changes the right key
+    final KeyHandle stale = new KeyHandle("key" + (MIN_CAPACITY - 1));
+    stale.Slot = beforeLast.Slot;
+    assertTrue(storage.updateInPlace(stale, Types.INT, 200));
+    assertEquals(200, storage.getInt("key" + (MIN_CAPACITY - 1), -1));
+    assertEquals(MIN_CAPACITY - 2, storage.getInt("key" + (MIN_CAPACITY - 2), -1));
+    assertEquals(last.Slot, stale.Slot);
+
+    // re-insert of removed key by handle
+    storage.putInt(handles[0], 300);
+    assertEquals(300, storage.getInt("key0", -1));
+    assertEquals(300, storage.getInt(handles[0], -1));
+
+    // handle survives clear and copy
+    storage.clear();
+    assertFalse(storage.contains(last));
+    storage.putString("key" + (MIN_CAPACITY - 1), "text");
+    assertEquals("text", storage.getString(last, null));
+    assertEquals("text", storage.copy().getString(last, null));
+  }
+
+  @LargeTest
+  public void test_06_TypedStorage_RemoveHeavyWorkload() {
+    final int operations = 100000;
+    final int keysCount = MIN_CAPACITY * 8;
+    final Random random = new Random(20161017);
+    final Map<String, Integer> expected = new HashMap<>();
+    final KeyHandle[] handles = new KeyHandle[keysCount];
+    TypedStorage storage = new TypedStorage();
+
+    for (int i = 0; i < keysCount; i++) {
+      handles[i] = new KeyHandle("key" + i);
+    }
+
+    meter().loop("run " + operations + " operations, 70% removes.");
+    for (int i = 0; i < operations; i++) {
+      final int k = random.nextInt(keysCount);
+      final String key = handles[k].getKey();
+
+      if (random.nextInt(10) < 7) {
+        assertEquals(expected.remove(key) != null, storage.remove(key));
+      } else if (random.nextBoolean()) {
+        storage.putInt(handles[k], i);
+        expected.put(key, i);
+      } else {
+        storage.putInt(key, i);
+        expected.put(key, i);
+      }
+
+      // copy-on-write cycle as done by the preferences
+      if (i % 1000 == 0) {
+        storage = storage.freeze().share().copy();
+      }
+
+      if (i % 100 == 0) {
+        assertSameContent(expected, storage, handles);
+      }
+    }
+    meter().unloop("operations done");
+
+    assertSameContent(expected, storage, handles);
+  }
+
+  /** Check that storage content equals to the expected one, by keys, by handles and by iteration. */
+  private static void assertSameContent(final Map<String, Integer> expected, final TypedStorage storage,
+                                        final KeyHandle[] handles) {
+    assertEquals(expected.size(), storage.size());
+
+    for (final KeyHandle handle : handles) {
+      final Integer value = expected.get(handle.getKey());
+
+      assertEquals(null != value, storage.contains(handle.getKey()));
+      assertEquals(null != value, storage.contains(handle));
+      assertEquals(null == value ? -1 : value, storage.getInt(handle, -1));
+    }
+
+    assertEquals(expected, new HashMap<>(storage.asMap()));
+  }
+
+  /** Check that all modifications of the storage fail. */
+  private static void assertReadOnly(final TypedStorage storage) {
+    final Runnable[] modifications = {
+        new Runnable() {
+          @Override
+          public void run() {
+            storage.putInt("int", 10);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            storage.putString("new", "text");
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            storage.remove("int");
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            storage.clear();
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            storage.asMap().put("int", 10);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            final Iterator<Map.Entry<String, Object>> it = storage.asMap().entrySet().iterator();
+            it.next();
+            it.remove();
+          }
+        }
+    };
+
+    for (final Runnable modification : modifications) {
+      try {
+        modification.run();
+        fail("frozen storage should not be modified");
+      } catch (final UnsupportedOperationException ignored) {
+        // expected
+      }
+    }
+
+    assertEquals(3, storage.size());
+  }
+
+  /**
+   * Find keys that share the same bucket of the hash index.
+   *
+   * @param count quantity of the keys.
+   * @param mask mask of the hash index.
+   * @return list of the keys.
+   */
+  private static List<String> collidingKeys(final int count, final int mask) {
+    final List<String> keys = new ArrayList<>();
+    final int bucket = TypedStorage.hash("k0") & mask;
+
+    for (int i = 0; keys.size() < count; i++) {
+      final String key = "k" + i;
+
+      if ((TypedStorage.hash(key) & mask) == bucket) {
+        keys.add(key);
+      }
+    }
+
+    return keys;
+  }
+
+  @Override
+  public void warmUp() {
+    // nothing to warm up
+  }
+}